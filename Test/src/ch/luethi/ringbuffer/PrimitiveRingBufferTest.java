@@ -0,0 +1,164 @@
+package ch.luethi.ringbuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class PrimitiveRingBufferTest {
+
+    private static final String TEST_DATA_FILE = "primitive.dat";
+
+    private PrimitiveRingBuffer rb;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Before
+    public void setUp() throws Exception {
+        new File(TEST_DATA_FILE).delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (rb != null) {
+            rb.close();
+        }
+        new File(TEST_DATA_FILE).delete();
+    }
+
+    @Test
+    public void longPushPopTest() {
+        LongRingBuffer lrb = new LongRingBuffer(TEST_DATA_FILE, 10);
+        rb = lrb;
+        for (long i = 0; i < 15; i++) {
+            lrb.push(i * 1000000007L);
+        }
+        assertEquals("Count not correct", 10, lrb.getCount());
+        assertEquals("Last not correct", 5, lrb.getLast());
+        assertEquals("Value not correct", 14 * 1000000007L, lrb.peek());
+        assertEquals("Value not correct", 14 * 1000000007L, lrb.pop());
+        assertEquals("Value not correct", 13 * 1000000007L, lrb.pop());
+        assertEquals("Count not correct", 8, lrb.getCount());
+    }
+
+    @Test
+    public void longPeekPushAllTest() {
+        LongRingBuffer lrb = new LongRingBuffer(TEST_DATA_FILE, 10);
+        rb = lrb;
+        long[] src = new long[7];
+        for (int i = 0; i < src.length; i++) {
+            src[i] = i;
+        }
+        lrb.pushAll(src);
+        lrb.pushAll(src);
+        assertEquals("Count not correct", 10, lrb.getCount());
+        assertEquals("Last not correct", 4, lrb.getLast());
+        assertEquals("Sequence not correct", 14, lrb.getSequence());
+
+        long[] dst = new long[20];
+        assertEquals("Wrong amount peeked", 10, lrb.peek(dst, 20));
+        long[] expected = {6, 5, 4, 3, 2, 1, 0, 6, 5, 4};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("Value not correct", expected[i], dst[i]);
+        }
+
+        long[] many = new long[25];
+        for (int i = 0; i < many.length; i++) {
+            many[i] = 100 + i;
+        }
+        lrb.pushAll(many);
+        assertEquals("Wrong amount peeked", 3, lrb.peek(dst, 3));
+        assertEquals("Value not correct", 124, dst[0]);
+        assertEquals("Value not correct", 122, dst[2]);
+        assertEquals("Last not correct", 9, lrb.getLast());
+    }
+
+    @Test
+    public void longReopenTest() {
+        LongRingBuffer lrb = new LongRingBuffer(TEST_DATA_FILE, 100);
+        for (long i = 0; i < 42; i++) {
+            lrb.push(i);
+        }
+        lrb.close();
+
+        RingBuffer bytes = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Reclen not correct", 8, bytes.getRecLen());
+        assertEquals("Count not correct", 42, bytes.getCount());
+        bytes.close();
+
+        lrb = LongRingBuffer.open(TEST_DATA_FILE);
+        rb = lrb;
+        assertEquals("Capacity not correct", 100, lrb.getCapacity());
+        assertEquals("Count not correct", 42, lrb.getCount());
+        assertEquals("Value not correct", 41, lrb.pop());
+    }
+
+    @Test
+    public void doublePushPeekTest() {
+        DoubleRingBuffer drb = new DoubleRingBuffer(TEST_DATA_FILE, 8);
+        rb = drb;
+        drb.pushAll(new double[]{0.5, 1.5, 2.5});
+        drb.push(3.5);
+        double[] dst = new double[4];
+        assertEquals("Wrong amount peeked", 4, drb.peek(dst, 4));
+        assertEquals("Value not correct", 3.5, dst[0], 0.0);
+        assertEquals("Value not correct", 0.5, dst[3], 0.0);
+        drb.delete(2);
+        assertEquals("Value not correct", 1.5, drb.pop(), 0.0);
+    }
+
+    @Test
+    public void popEmptyTest() {
+        LongRingBuffer lrb = new LongRingBuffer(TEST_DATA_FILE, 8);
+        rb = lrb;
+        thrown.expect(RuntimeException.class);
+        thrown.expectMessage("Storage is empty");
+        lrb.pop();
+    }
+
+    @Test
+    public void byteOrderTest() {
+        LongRingBuffer lrb = new LongRingBuffer(TEST_DATA_FILE, 10);
+        lrb.push(42);
+        lrb.close();
+        RingBuffer bytes = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Byte order not correct", ByteOrder.nativeOrder(), bytes.getByteOrder());
+        assertEquals("Value not correct", 42, ByteBuffer.wrap(bytes.peek()).order(bytes.getByteOrder()).getLong());
+        bytes.close();
+    }
+
+    @Test
+    public void foreignByteOrderTest() {
+        ByteOrder foreign = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        RingBuffer bytes = new RingBuffer(TEST_DATA_FILE, 10, 8);
+        bytes.setByteOrder(foreign);
+        for (long i = 1; i <= 3; i++) {
+            bytes.push(ByteBuffer.allocate(8).order(foreign).putLong(i * 1000000007L).array());
+        }
+        bytes.close();
+
+        LongRingBuffer lrb = LongRingBuffer.open(TEST_DATA_FILE);
+        rb = lrb;
+        assertEquals("Value not correct", 3 * 1000000007L, lrb.pop());
+        lrb.push(4711);
+        long[] dst = new long[3];
+        assertEquals("Wrong amount peeked", 3, lrb.peek(dst, 3));
+        assertEquals("Value not correct", 4711, dst[0]);
+        assertEquals("Value not correct", 1000000007L, dst[2]);
+        lrb.close();
+
+        bytes = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Byte order not correct", foreign, bytes.getByteOrder());
+        assertEquals("Value not correct", 4711, ByteBuffer.wrap(bytes.peek()).order(foreign).getLong());
+        bytes.close();
+        rb = null;
+    }
+}
@@ -0,0 +1,238 @@
+package ch.luethi.ringbuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ReplicationTest {
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    private static final String LEADER_DATA_FILE = "leader.dat";
+    private static final String FOLLOWER_DATA_FILE = "follower.dat";
+
+    private RingBuffer leaderRb;
+    private RingBuffer followerRb;
+    private ReplicationLeader leader;
+    private ReplicationFollower follower;
+
+    @Before
+    public void setUp() throws Exception {
+        new File(LEADER_DATA_FILE).delete();
+        new File(FOLLOWER_DATA_FILE).delete();
+        PipedInputStream in = new PipedInputStream(1024 * 1024);
+        PipedOutputStream out = new PipedOutputStream(in);
+        leaderRb = new RingBuffer(LEADER_DATA_FILE, 50, 4);
+        followerRb = new RingBuffer(FOLLOWER_DATA_FILE, 50, 4);
+        leader = new ReplicationLeader(leaderRb, out, 64);
+        follower = new ReplicationFollower(followerRb, in);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        leader.close();
+        follower.close();
+        leaderRb.close();
+        followerRb.close();
+        new File(LEADER_DATA_FILE).delete();
+        new File(FOLLOWER_DATA_FILE).delete();
+    }
+
+    private byte[] intToBytes(final int i) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(i);
+        return bb.array();
+    }
+
+    private void drain() {
+        while (follower.getLagBytes() > 0) {
+            assertTrue("Stream closed", follower.poll() >= 0);
+        }
+    }
+
+    @Test
+    public void replicatePushPopTest() {
+        for (int i = 0; i < 10; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leaderRb.pop();
+        leader.flush();
+
+        assertEquals("Applied records not correct", 10, follower.poll());
+        assertEquals("Count not correct", 9, followerRb.getCount());
+        assertEquals("Last not correct", 9, followerRb.getLast());
+        assertEquals("Lag not correct", 0, follower.getLagRecords());
+        for (int i = 8; i >= 0; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), followerRb.pop());
+        }
+    }
+
+    @Test
+    public void replicateWrapTest() {
+        for (int i = 0; i < 120; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leader.flush();
+        while (follower.getAppliedSequence() < leader.getSequence()) {
+            assertTrue("Stream closed", follower.poll() >= 0);
+        }
+        assertEquals("Count not correct", leaderRb.getCount(), followerRb.getCount());
+        assertEquals("Last not correct", leaderRb.getLast(), followerRb.getLast());
+        for (int i = 119; i >= 70; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), followerRb.pop());
+        }
+    }
+
+    @Test
+    public void syncAndChangeCapacityTest() {
+        for (int i = 0; i < 30; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leader.sync();
+        drain();
+        assertEquals("Count not correct", 30, followerRb.getCount());
+        assertEquals("Sequence not correct", 30, followerRb.getSequence());
+        assertEquals("Sequence not correct", 30, follower.getAppliedSequence());
+
+        leaderRb.changeCapacity(100);
+        leader.flush();
+        follower.poll();
+        assertEquals("Capacity not correct", 100, followerRb.getCapacity());
+        assertEquals("Count not correct", 30, followerRb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(29), followerRb.peek());
+    }
+
+    @Test
+    public void decCapacityTest() {
+        for (int i = 0; i < 15; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leaderRb.changeCapacity(10);
+        leader.flush();
+        drain();
+        assertEquals("File length not correct", new File(LEADER_DATA_FILE).length(), new File(FOLLOWER_DATA_FILE).length());
+        assertEquals("Last not correct", leaderRb.getLast(), followerRb.getLast());
+        for (int i = 14; i >= 5; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), followerRb.pop());
+        }
+    }
+
+    @Test
+    public void concurrentFlushTest() throws Exception {
+        Thread flusher = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    leader.flush();
+                }
+            }
+        });
+        flusher.start();
+        for (int i = 0; i < 2000; i++) {
+            leaderRb.push(intToBytes(i));
+            if (i % 100 == 0) {
+                drain();
+            }
+        }
+        flusher.interrupt();
+        flusher.join();
+        leader.flush();
+        drain();
+        assertEquals("Sequence not correct", 2000, followerRb.getSequence());
+        for (int i = 1999; i >= 1950; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), followerRb.pop());
+        }
+    }
+
+    @Test
+    public void lagTest() {
+        for (int i = 0; i < 5; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leader.flush();
+        assertTrue("Lag bytes expected", follower.getLagBytes() > 0);
+        follower.poll();
+        assertEquals("Lag not correct", 0, follower.getLagRecords());
+        assertEquals("Lag bytes not correct", 0, follower.getLagBytes());
+
+        for (int i = 5; i < 45; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leader.flush();
+        follower.poll();
+        assertTrue("Lag expected", follower.getLagRecords() > 0);
+        while (follower.getAppliedSequence() < leader.getSequence()) {
+            assertTrue("Stream closed", follower.poll() >= 0);
+        }
+        assertEquals("Lag not correct", 0, follower.getLagRecords());
+        assertEquals("Sequence not correct", 45, followerRb.getSequence());
+    }
+
+    @Test(timeout = 10000)
+    public void slowFollowerTest() throws Exception {
+        PipedInputStream in = new PipedInputStream(1024);
+        ReplicationLeader stalled = new ReplicationLeader(leaderRb, new PipedOutputStream(in), 64);
+        for (int i = 0; i < 20000; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        assertArrayEquals("Record content not correct", intToBytes(19999), leaderRb.peek());
+        try {
+            thrown.expect(RuntimeException.class);
+            thrown.expectMessage("follower must be synced again");
+            stalled.getSequence();
+        } finally {
+            in.close();
+            stalled.close();
+        }
+    }
+
+    @Test
+    public void failedTransportTest() {
+        ReplicationLeader broken = new ReplicationLeader(leaderRb, new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        }, 64);
+        leaderRb.push(intToBytes(1));
+        try {
+            thrown.expect(RuntimeException.class);
+            thrown.expectMessage("Connection reset");
+            broken.flush();
+        } finally {
+            broken.close();
+        }
+    }
+
+    @Test
+    public void fullBatchShipsHeaderTest() {
+        for (int i = 0; i < 50; i++) {
+            leaderRb.push(intToBytes(i));
+        }
+        leader.flush();
+        drain();
+        for (int i = 50; i < 120; i++) {
+            leaderRb.push(intToBytes(i));
+            drain();
+            int expected = (int) (followerRb.getSequence() - followerRb.getCount());
+            try (RingBufferSnapshot snapshot = followerRb.snapshot()) {
+                for (byte[] ba : snapshot) {
+                    assertArrayEquals("Record content not correct", intToBytes(expected++), ba);
+                }
+            }
+        }
+        leader.flush();
+        drain();
+        assertEquals("Sequence not correct", 120, followerRb.getSequence());
+    }
+}
@@ -0,0 +1,238 @@
+package ch.luethi.ringbuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RingBufferFlowTest {
+
+    private static final String TEST_DATA_FILE = "flow.dat";
+
+    private RingBuffer rb;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        new File(TEST_DATA_FILE).delete();
+        rb = new RingBuffer(TEST_DATA_FILE, 1000, 4);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        rb.close();
+        new File(TEST_DATA_FILE).delete();
+    }
+
+    private byte[] intToBytes(final int i) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(i);
+        return bb.array();
+    }
+
+    private static class CollectingSubscriber implements Flow.Subscriber<byte[][]> {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile int batches;
+        volatile Throwable error;
+        Flow.Subscription subscription;
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        public void onNext(byte[][] item) {
+            synchronized (records) {
+                for (byte[] ba : item) {
+                    records.add(ba);
+                }
+            }
+            batches++;
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        int size() {
+            synchronized (records) {
+                return records.size();
+            }
+        }
+    }
+
+    private void awaitSize(CollectingSubscriber subscriber, int size) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (subscriber.size() < size && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void publishOnDemandTest() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            rb.push(intToBytes(i));
+        }
+        RingBufferPublisher publisher = new RingBufferPublisher(rb, 10, executor);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.request(3);
+        awaitSize(subscriber, 30);
+        Thread.sleep(50);
+        assertEquals("Batches not correct", 3, subscriber.batches);
+        assertEquals("Records not correct", 30, subscriber.size());
+        assertEquals("Count not correct", 70, rb.getCount());
+        for (int i = 0; i < 30; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(i), subscriber.records.get(i));
+        }
+
+        subscriber.subscription.request(100);
+        awaitSize(subscriber, 100);
+        assertEquals("Count not correct", 0, rb.getCount());
+
+        for (int i = 100; i < 105; i++) {
+            rb.push(intToBytes(i));
+        }
+        awaitSize(subscriber, 105);
+        assertArrayEquals("Record content not correct", intToBytes(104), subscriber.records.get(104));
+
+        publisher.close();
+        assertTrue("Not completed", subscriber.completed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void invalidRequestTest() throws Exception {
+        RingBufferPublisher publisher = new RingBufferPublisher(rb, 10, executor);
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(0);
+        assertTrue("Not terminated", subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertTrue("Wrong error", subscriber.error instanceof IllegalArgumentException);
+        rb.push(intToBytes(1));
+        subscriber.subscription.request(1);
+        Thread.sleep(50);
+        assertEquals("Records not correct", 0, subscriber.size());
+        assertEquals("Count not correct", 1, rb.getCount());
+        publisher.close();
+    }
+
+    @Test
+    public void subscribeAfterCloseTest() throws Exception {
+        RingBufferPublisher publisher = new RingBufferPublisher(rb, 10, executor);
+        publisher.close();
+        CollectingSubscriber subscriber = new CollectingSubscriber();
+        publisher.subscribe(subscriber);
+        assertTrue("Not completed", subscriber.completed.await(5, TimeUnit.SECONDS));
+        assertNull("Unexpected error", subscriber.error);
+    }
+
+    @Test
+    public void subscribeSinkTest() throws Exception {
+        SubmissionPublisher<byte[]> source = new SubmissionPublisher<byte[]>(executor, 16);
+        RingBufferSubscriber sink = new RingBufferSubscriber(rb, 32);
+        source.subscribe(sink);
+        for (int i = 0; i < 100; i++) {
+            source.submit(intToBytes(i));
+        }
+        source.close();
+        assertTrue("Not completed", sink.awaitTermination(5, TimeUnit.SECONDS));
+        assertNull("Unexpected error", sink.getError());
+        assertEquals("Count not correct", 100, rb.getCount());
+        assertEquals("Sequence not correct", 100, rb.getSequence());
+        for (int i = 99; i >= 0; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), rb.pop());
+        }
+    }
+
+    @Test
+    public void requestInOnSubscribeTest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            rb.push(intToBytes(i));
+        }
+        RingBufferPublisher publisher = new RingBufferPublisher(rb, 10, executor);
+        final CountDownLatch delivered = new CountDownLatch(1);
+        final boolean[] subscribedFirst = new boolean[1];
+        publisher.subscribe(new CollectingSubscriber() {
+            private volatile boolean subscribed;
+
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(1);
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                subscribed = true;
+            }
+
+            public void onNext(byte[][] item) {
+                subscribedFirst[0] = subscribed;
+                delivered.countDown();
+            }
+        });
+        assertTrue("Not delivered", delivered.await(5, TimeUnit.SECONDS));
+        assertTrue("onNext before onSubscribe returned", subscribedFirst[0]);
+        publisher.close();
+    }
+
+    @Test
+    public void invalidItemSinkTest() throws Exception {
+        SubmissionPublisher<byte[]> source = new SubmissionPublisher<byte[]>(executor, 16);
+        RingBufferSubscriber sink = new RingBufferSubscriber(rb, 32);
+        source.subscribe(sink);
+        for (int i = 0; i < 5; i++) {
+            source.submit(intToBytes(i));
+        }
+        source.submit(new byte[3]);
+        source.submit(intToBytes(5));
+        assertTrue("Not terminated", sink.awaitTermination(5, TimeUnit.SECONDS));
+        assertNotNull("Error expected", sink.getError());
+        assertTrue("Wrong error", sink.getError().getMessage().startsWith("Date length error"));
+        assertEquals("Count not correct", 5, rb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(4), rb.peek());
+        source.close();
+    }
+
+    @Test
+    public void pushAllTakeTest() {
+        rb.changeCapacity(10);
+        for (int i = 0; i < 7; i++) {
+            rb.push(intToBytes(i));
+        }
+        byte[][] records = new byte[6][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = intToBytes(7 + i);
+        }
+        rb.pushAll(records);
+        assertEquals("Count not correct", 10, rb.getCount());
+        assertEquals("Last not correct", 3, rb.getLast());
+
+        byte[][] taken = rb.take(4);
+        assertEquals("Wrong amount taken", 4, taken.length);
+        for (int i = 0; i < taken.length; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(3 + i), taken[i]);
+        }
+        assertEquals("Count not correct", 6, rb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(12), rb.peek());
+    }
+}
@@ -0,0 +1,176 @@
+package ch.luethi.ringbuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class RingBufferSnapshotTest {
+
+    private static final String TEST_DATA_FILE = "snapshot.dat";
+    private static final String EXPORT_DATA_FILE = "snapshot-export.dat";
+
+    private RingBuffer rb;
+
+    @Rule
+    public ExpectedException thrown = ExpectedException.none();
+
+    @Before
+    public void setUp() throws Exception {
+        new File(TEST_DATA_FILE).delete();
+        new File(EXPORT_DATA_FILE).delete();
+        rb = new RingBuffer(TEST_DATA_FILE, 50, 4);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        rb.close();
+        new File(TEST_DATA_FILE).delete();
+        new File(EXPORT_DATA_FILE).delete();
+    }
+
+    private byte[] intToBytes(final int i) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(i);
+        return bb.array();
+    }
+
+    private void assertRecords(RingBufferSnapshot snapshot, int from, int to) {
+        int i = from;
+        for (byte[] ba : snapshot) {
+            assertArrayEquals("Record content not correct", intToBytes(i++), ba);
+        }
+        assertEquals("Wrong amount iterated", to, i);
+    }
+
+    @Test
+    public void snapshotWhilePushingTest() {
+        for (int i = 0; i < 70; i++) {
+            rb.push(intToBytes(i));
+        }
+        RingBufferSnapshot snapshot = rb.snapshot();
+        assertEquals("Count not correct", 50, snapshot.getCount());
+        assertEquals("Sequence not correct", 70, snapshot.getSequence());
+
+        for (int i = 70; i < 90; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.delete(3);
+        rb.pop();
+        assertEquals("Copied slots not correct", 20, snapshot.getCopiedCount());
+        assertRecords(snapshot, 20, 70);
+
+        byte[][] records = new byte[100][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = intToBytes(100 + i);
+        }
+        rb.pushAll(records);
+        assertEquals("Copied slots not correct", 50, snapshot.getCopiedCount());
+        assertRecords(snapshot, 20, 70);
+        snapshot.close();
+
+        rb.push(intToBytes(4711));
+        assertArrayEquals("Record content not correct", intToBytes(4711), rb.peek());
+    }
+
+    @Test
+    public void exportTest() {
+        for (int i = 0; i < 30; i++) {
+            rb.push(intToBytes(i));
+        }
+        RingBuffer exported;
+        try (RingBufferSnapshot snapshot = rb.snapshot()) {
+            for (int i = 30; i < 100; i++) {
+                rb.push(intToBytes(i));
+            }
+            exported = snapshot.exportTo(EXPORT_DATA_FILE);
+        }
+        exported.close();
+
+        exported = RingBuffer.open(EXPORT_DATA_FILE);
+        assertEquals("Capacity not correct", 50, exported.getCapacity());
+        assertEquals("Count not correct", 30, exported.getCount());
+        assertEquals("Sequence not correct", 30, exported.getSequence());
+        for (int i = 29; i >= 0; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), exported.pop());
+        }
+        exported.close();
+        assertEquals("Count not correct", 50, rb.getCount());
+    }
+
+    @Test
+    public void exportByteOrderTest() {
+        String longFile = "snapshot-long.dat";
+        new File(longFile).delete();
+        LongRingBuffer lrb = new LongRingBuffer(longFile, 10);
+        lrb.push(42);
+        lrb.close();
+        RingBuffer source = RingBuffer.open(longFile);
+        RingBuffer exported;
+        try (RingBufferSnapshot snapshot = source.snapshot()) {
+            exported = snapshot.exportTo(EXPORT_DATA_FILE);
+        }
+        source.close();
+        assertEquals("Byte order not correct", ByteOrder.nativeOrder(), exported.getByteOrder());
+        exported.close();
+
+        lrb = LongRingBuffer.open(EXPORT_DATA_FILE);
+        assertEquals("Value not correct", 42, lrb.peek());
+        lrb.close();
+        new File(longFile).delete();
+    }
+
+    @Test
+    public void snapshotChangeCapacityTest() {
+        for (int i = 0; i < 60; i++) {
+            rb.push(intToBytes(i));
+        }
+        RingBufferSnapshot snapshot = rb.snapshot();
+        rb.changeCapacity(20);
+        for (int i = 60; i < 75; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.changeCapacity(200);
+        assertRecords(snapshot, 10, 60);
+        snapshot.close();
+    }
+
+    @Test
+    public void concurrentPushTest() throws Exception {
+        rb.changeCapacity(1000);
+        for (int i = 0; i < 1000; i++) {
+            rb.push(intToBytes(i));
+        }
+        RingBufferSnapshot snapshot = rb.snapshot();
+        Thread writer = new Thread(new Runnable() {
+            public void run() {
+                for (int i = 1000; i < 5000; i++) {
+                    rb.push(intToBytes(i));
+                }
+            }
+        });
+        writer.start();
+        assertRecords(snapshot, 0, 1000);
+        writer.join();
+        assertRecords(snapshot, 0, 1000);
+        assertEquals("Sequence not correct", 5000, rb.getSequence());
+        snapshot.close();
+    }
+
+    @Test
+    public void closedSnapshotTest() {
+        rb.push(intToBytes(1));
+        RingBufferSnapshot snapshot = rb.snapshot();
+        snapshot.close();
+        thrown.expect(RuntimeException.class);
+        thrown.expectMessage("Snapshot is closed");
+        snapshot.iterator().next();
+    }
+}
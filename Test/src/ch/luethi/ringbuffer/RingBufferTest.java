@@ -8,8 +8,10 @@ import org.junit.rules.ExpectedException;
 import org.junit.rules.TestName;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
+import static java.util.Arrays.copyOf;
 import static org.junit.Assert.*;
 
 /**
@@ -180,7 +182,7 @@ public class RingBufferTest {
         rb.changeCapacity(100);
         assertEquals("Capacity not correct", 100, rb.getCapacity());
         assertEquals("Count not correct", 100, rb.getCount());
-        assertEquals("Last not correct", 100, rb.getLast());
+        assertEquals("Last not correct", 99, rb.getLast());
 
         for (int i = 0; i < rb.getCount(); i++) {
             byte[] pop = rb.pop();
@@ -548,7 +550,372 @@ public class RingBufferTest {
         assertEquals("Last not correct", 0, rb.getLast());
     }
 
+    @Test
+    public void openTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 321, DEF_REC_LEN);
+        byte[] ba = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20};
+        rb.push(ba);
+        rb.push(ba);
+        rb.close();
+
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Capacity not correct", 321, rb.getCapacity());
+        assertEquals("Reclen not correct", DEF_REC_LEN, rb.getRecLen());
+        assertEquals("Count not correct", 2, rb.getCount());
+        assertEquals("Last not correct", 2, rb.getLast());
+        assertEquals("Sequence not correct", 2, rb.getSequence());
+        assertArrayEquals("Record content not correct", ba, rb.pop());
+    }
+
+    @Test
+    public void reopenOtherCapacityTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 50, 4);
+        for (int i = 0; i < 10; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.close();
+
+        rb = new RingBuffer(TEST_DATA_FILE, 80, 4, false);
+        assertEquals("Capacity not correct", 80, rb.getCapacity());
+        assertEquals("Count not correct", 10, rb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(9), rb.pop());
+    }
 
+    @Test
+    public void reopenOtherRecLenTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 50, 4);
+        rb.push(intToBytes(4711));
+        rb.close();
+
+        thrown.expect(RuntimeException.class);
+        thrown.expectMessage("Record length error, existing buffer has length 4");
+        new RingBuffer(TEST_DATA_FILE, 50, 8, false);
+    }
+
+    @Test
+    public void legacyHeaderMigrationTest() throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(TEST_DATA_FILE, "rw");
+        raf.setLength(20 + 30 * 4);
+        raf.writeInt(4);
+        raf.writeLong(3);
+        raf.writeLong(3);
+        for (int i = 1; i <= 3; i++) {
+            raf.seek(20 + i * 4);
+            raf.writeInt(i * 11);
+        }
+        raf.close();
+
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Capacity not correct", 30, rb.getCapacity());
+        assertEquals("Reclen not correct", 4, rb.getRecLen());
+        assertEquals("Count not correct", 3, rb.getCount());
+        assertEquals("Last not correct", 3, rb.getLast());
+        assertArrayEquals("Record content not correct", intToBytes(33), rb.pop());
+        rb.close();
+
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Count not correct", 2, rb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(22), rb.pop());
+        assertArrayEquals("Record content not correct", intToBytes(11), rb.pop());
+    }
 
+    @Test
+    public void legacyMigrationLeftoverTest() throws Exception {
+        File leftover = new File(TEST_DATA_FILE + ".migrate");
+        RandomAccessFile raf = new RandomAccessFile(leftover, "rw");
+        raf.setLength(5000);
+        raf.close();
+        raf = new RandomAccessFile(TEST_DATA_FILE, "rw");
+        raf.setLength(20 + 10 * 4);
+        raf.writeInt(4);
+        raf.writeLong(1);
+        raf.writeLong(0);
+        raf.writeInt(4711);
+        raf.close();
+
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertFalse("Migration file not removed", leftover.exists());
+        assertEquals("Capacity not correct", 10, rb.getCapacity());
+        assertEquals("File length not correct", 72 + 10 * 4, new File(TEST_DATA_FILE).length());
+        assertArrayEquals("Record content not correct", intToBytes(4711), rb.pop());
+    }
+
+    @Test
+    public void corruptHeaderTest() throws Exception {
+        rb = new RingBuffer(TEST_DATA_FILE, 50, 4);
+        rb.close();
+        RandomAccessFile raf = new RandomAccessFile(TEST_DATA_FILE, "rw");
+        raf.seek(16);
+        raf.writeLong(5000);
+        raf.close();
+
+        thrown.expect(RuntimeException.class);
+        thrown.expectMessage("Storage file not readable");
+        RingBuffer.open(TEST_DATA_FILE);
+    }
+
+    @Test
+    public void ttlPeekPopTest() throws Exception {
+        rb = new RingBuffer(TEST_DATA_FILE, 50, 4, 0);
+        rb.push(intToBytes(1));
+        rb.push(intToBytes(2), 50);
+        rb.push(intToBytes(3));
+        rb.push(intToBytes(4), 50);
+        assertArrayEquals("Record content not correct", intToBytes(4), rb.peek());
+        Thread.sleep(100);
+
+        assertArrayEquals("Record content not correct", intToBytes(3), rb.peek());
+        byte[][] baa = rb.peek(10);
+        assertEquals("Wrong amount peeked", 2, baa.length);
+        assertArrayEquals("Record content not correct", intToBytes(3), baa[0]);
+        assertArrayEquals("Record content not correct", intToBytes(1), baa[1]);
+        assertEquals("Count not correct", 4, rb.getCount());
+
+        assertArrayEquals("Record content not correct", intToBytes(3), rb.pop());
+        assertEquals("Count not correct", 2, rb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(1), rb.pop());
+        assertNull("Null reference expected", rb.pop());
+    }
+
+    @Test
+    public void ttlExpireTest() throws Exception {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4, 50);
+        for (int i = 0; i < 25; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.setTtl(0);
+        for (int i = 25; i < 30; i++) {
+            rb.push(intToBytes(i));
+        }
+        Thread.sleep(100);
+        assertEquals("Expired not correct", 15, rb.expire());
+        assertEquals("Count not correct", 5, rb.getCount());
+        assertEquals("Last not correct", 10, rb.getLast());
+        rb.close();
+
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        byte[][] baa = rb.peek(10);
+        assertEquals("Wrong amount peeked", 5, baa.length);
+        assertArrayEquals("Record content not correct", intToBytes(29), baa[0]);
+    }
+
+    @Test
+    public void ttlPeekReclaimTest() throws Exception {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4, 50);
+        for (int i = 0; i < 10; i++) {
+            rb.push(intToBytes(i));
+        }
+        Thread.sleep(100);
+        rb.push(intToBytes(10), 0);
+        byte[][] baa = rb.peek(5);
+        assertEquals("Wrong amount peeked", 1, baa.length);
+        assertEquals("Count not correct", 1, rb.getCount());
+    }
+
+    @Test
+    public void ttlNotEnabledTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4);
+        thrown.expect(RuntimeException.class);
+        thrown.expectMessage("Storage has no record TTL");
+        rb.push(intToBytes(1), 1000);
+    }
+
+    @Test
+    public void readCachePeekTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 100, 4);
+        for (int i = 0; i < 50; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.close();
+
+        rb = new RingBuffer(TEST_DATA_FILE, 100, 4, false);
+        rb.setReadCache(32, 8);
+        for (int n = 0; n < 2; n++) {
+            byte[][] baa = rb.peek(40);
+            assertEquals("Wrong amount peeked", 40, baa.length);
+            for (int i = 0; i < baa.length; i++) {
+                assertArrayEquals("Record content not correct", intToBytes(49 - i), baa[i]);
+            }
+        }
+        byte[] ba = rb.peek();
+        ba[0] = 99;
+        assertArrayEquals("Cached record modified", intToBytes(49), rb.peek());
+
+        for (int i = 50; i < 130; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.delete(5);
+        assertArrayEquals("Record content not correct", intToBytes(124), rb.peek());
+        rb.push(intToBytes(4711));
+        assertArrayEquals("Record content not correct", intToBytes(4711), rb.pop());
+        for (int i = 124; i >= 30; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), rb.pop());
+        }
+        assertNull("Null reference expected", rb.pop());
+    }
 
-}
\ No newline at end of file
+    @Test
+    public void readCacheWrapTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 100, 4);
+        rb.setReadCache(32, 8);
+        for (int i = 0; i < 116; i++) {
+            rb.push(intToBytes(i));
+        }
+        byte[][] baa = rb.peek(32);
+        for (int i = 0; i < baa.length; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(115 - i), baa[i]);
+        }
+
+        SlotCache cache = new SlotCache(32, 100);
+        for (int i = 0; i < 32; i++) {
+            long slot = (84 + i) % 100;
+            cache.put(slot, intToBytes(i));
+        }
+        for (int i = 0; i < 32; i++) {
+            long slot = (84 + i) % 100;
+            assertArrayEquals("Cached record evicted", intToBytes(i), cache.get(slot));
+        }
+        cache.put(47, intToBytes(47));
+        assertNull("Record not evicted", cache.get(15));
+    }
+
+    @Test
+    public void readCacheChangeCapacityTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4);
+        rb.setReadCache(16, 4);
+        int val = 0;
+        for (int n = 0; n < 30; n++) {
+            rb.push(intToBytes(val++));
+        }
+        assertEquals("Wrong amount peeked", 20, rb.peek(20).length);
+        rb.changeCapacity(50);
+        for (int n = 0; n < 10; n++) {
+            rb.push(intToBytes(val++));
+        }
+        rb.changeCapacity(15);
+        assertEquals("Count not correct", 15, rb.getCount());
+        for (int i = 0; i < 15; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(--val), rb.pop());
+        }
+    }
+
+    @Test
+    public void takeAfterDecCapacityTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4);
+        for (int i = 0; i < 15; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.changeCapacity(10);
+        assertEquals("Last not correct", 9, rb.getLast());
+        byte[][] baa = rb.take(20);
+        assertEquals("Wrong amount taken", 10, baa.length);
+        for (int i = 0; i < baa.length; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(5 + i), baa[i]);
+        }
+    }
+
+    @Test
+    public void ttlReopenTest() throws Exception {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4, 50);
+        rb.close();
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("TTL not correct", 50, rb.getTtl());
+        rb.push(intToBytes(1));
+        rb.setTtl(5000);
+        rb.close();
+
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4, false);
+        assertEquals("TTL not correct", 5000, rb.getTtl());
+        Thread.sleep(100);
+        assertNull("Null reference expected", rb.peek());
+        rb.push(intToBytes(2));
+        assertArrayEquals("Record content not correct", intToBytes(2), rb.peek());
+    }
+
+    @Test
+    public void pushAfterDecCapacityTest() {
+        rb = new RingBuffer(TEST_DATA_FILE, 20, 4);
+        for (int i = 0; i < 15; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.changeCapacity(10);
+        for (int i = 15; i < 115; i++) {
+            rb.push(intToBytes(i));
+        }
+        byte[][] baa = rb.peek(10);
+        assertEquals("Wrong amount peeked", 10, baa.length);
+        for (int i = 0; i < baa.length; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(114 - i), baa[i]);
+        }
+    }
+
+    @Test
+    public void directPushReopenTest() throws Exception {
+        rb = RingBuffer.createDirect(TEST_DATA_FILE, 5000, DEF_REC_LEN);
+        byte[] ba = new byte[DEF_REC_LEN];
+        for (int i = 0; i < 7000; i++) {
+            System.arraycopy(intToBytes(i), 0, ba, 0, 4);
+            rb.push(ba);
+        }
+        assertEquals("Count not correct", 5000, rb.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(6999), copyOf(rb.peek(), 4));
+        byte[][] baa = rb.peek(3000);
+        for (int i = 0; i < baa.length; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(6999 - i), copyOf(baa[i], 4));
+        }
+
+        // slot 0 is written by the 5000th push, which flushed the first 4999
+        RandomAccessFile raf = new RandomAccessFile(TEST_DATA_FILE, "r");
+        raf.seek(RingBuffer.SEQUENCE_POS);
+        assertEquals("Sequence not correct", 4999, raf.readLong());
+        rb.flush();
+        raf.seek(RingBuffer.SEQUENCE_POS);
+        assertEquals("Sequence not flushed", 7000, raf.readLong());
+        raf.close();
+
+        rb.delete(10);
+        rb.close();
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Count not correct", 4990, rb.getCount());
+        assertEquals("Data offset not correct", 0, rb.getDataOffset() % 4096);
+        for (int i = 6989; i > 1999; i--) {
+            assertArrayEquals("Record content not correct", intToBytes(i), copyOf(rb.pop(), 4));
+        }
+        assertNull("Null reference expected", rb.pop());
+    }
+
+    @Test
+    public void directFileLengthTest() {
+        rb = RingBuffer.createDirect(TEST_DATA_FILE, 10, 4);
+        for (int i = 0; i < 25; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.flush();
+        long length = rb.getDataOffset() + 10 * 4;
+        assertEquals("File length not correct", length, new File(TEST_DATA_FILE).length());
+        rb.close();
+        assertEquals("File length not correct", length, new File(TEST_DATA_FILE).length());
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        assertArrayEquals("Record content not correct", intToBytes(24), rb.peek());
+    }
+
+    @Test
+    public void directChangeCapacityTest() {
+        rb = RingBuffer.createDirect(TEST_DATA_FILE, 100, 4);
+        for (int i = 0; i < 150; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.changeCapacity(200);
+        for (int i = 150; i < 200; i++) {
+            rb.push(intToBytes(i));
+        }
+        rb.changeCapacity(60);
+        rb.close();
+        rb = new RingBuffer(TEST_DATA_FILE, 60, 4, false);
+        assertEquals("Count not correct", 60, rb.getCount());
+        byte[][] baa = rb.take(60);
+        for (int i = 0; i < baa.length; i++) {
+            assertArrayEquals("Record content not correct", intToBytes(140 + i), baa[i]);
+        }
+    }
+}
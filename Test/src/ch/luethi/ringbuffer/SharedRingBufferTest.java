@@ -0,0 +1,182 @@
+package ch.luethi.ringbuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class SharedRingBufferTest {
+
+    private static final String TEST_DATA_FILE = "shared.dat";
+
+    private SharedRingBuffer writer;
+    private SharedRingBuffer reader;
+
+    @Before
+    public void setUp() throws Exception {
+        new File(TEST_DATA_FILE).delete();
+        writer = new SharedRingBuffer(TEST_DATA_FILE, 100, 4);
+        reader = new SharedRingBuffer(TEST_DATA_FILE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        reader.close();
+        new File(TEST_DATA_FILE).delete();
+    }
+
+    private byte[] intToBytes(final int i) {
+        ByteBuffer bb = ByteBuffer.allocate(4);
+        bb.putInt(i);
+        return bb.array();
+    }
+
+    @Test
+    public void pushPopAcrossMappingsTest() {
+        for (int i = 0; i < 10; i++) {
+            writer.push(intToBytes(i));
+        }
+        assertEquals("Count not correct", 10, reader.getCount());
+        assertEquals("Last not correct", 10, reader.getLast());
+        assertArrayEquals("Record content not correct", intToBytes(9), reader.pop());
+        assertEquals("Count not correct", 9, writer.getCount());
+
+        byte[][] baa = writer.peek(3);
+        assertEquals("Wrong amount peeked", 3, baa.length);
+        assertArrayEquals("Record content not correct", intToBytes(8), baa[0]);
+        assertArrayEquals("Record content not correct", intToBytes(6), baa[2]);
+
+        reader.delete(5);
+        assertEquals("Count not correct", 4, writer.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(3), writer.peek());
+    }
+
+    @Test
+    public void fileReadableByRingBufferTest() {
+        for (int i = 0; i < 120; i++) {
+            writer.push(intToBytes(i));
+        }
+        RingBuffer rb = RingBuffer.open(TEST_DATA_FILE);
+        assertEquals("Count not correct", 100, rb.getCount());
+        assertEquals("Last not correct", 20, rb.getLast());
+        assertEquals("Sequence not correct", 120, rb.getSequence());
+        assertArrayEquals("Record content not correct", intToBytes(119), rb.pop());
+        rb.close();
+    }
+
+    @Test
+    public void concurrentPushTest() throws Exception {
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final SharedRingBuffer srb = (t % 2 == 0) ? writer : reader;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        srb.push(intToBytes(i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals("Sequence not correct", 40000, reader.getSequence());
+        assertEquals("Count not correct", 100, writer.getCount());
+        assertEquals("Last not correct", 0, writer.getLast());
+    }
+
+    @Test
+    public void attachMismatchTest() {
+        try {
+            new SharedRingBuffer(TEST_DATA_FILE, 100, 8);
+            fail("Record length mismatch not detected");
+        } catch (RuntimeException e) {
+            assertEquals("Shared storage has capacity 100 and record length 4", e.getMessage());
+        }
+    }
+
+    @Test
+    public void staleLockTest() throws Exception {
+        writer.push(intToBytes(1));
+        RandomAccessFile raf = new RandomAccessFile(TEST_DATA_FILE, "rw");
+        raf.seek(RingBuffer.LOCK_POS);
+        raf.writeLong(Long.MAX_VALUE);
+        raf.close();
+        assertArrayEquals("Record content not correct", intToBytes(1), reader.peek());
+        writer.push(intToBytes(2));
+        assertArrayEquals("Record content not correct", intToBytes(2), reader.pop());
+    }
+
+    @Test
+    public void legacyLockWordTest() throws Exception {
+        writer.close();
+        reader.close();
+        new File(TEST_DATA_FILE).delete();
+        RandomAccessFile raf = new RandomAccessFile(TEST_DATA_FILE, "rw");
+        raf.setLength(20 + 12 * 4);
+        raf.writeInt(4);
+        raf.writeLong(12);
+        raf.writeLong(11);
+        for (int i = 0; i < 12; i++) {
+            raf.writeInt(0x11111111 * (i % 8 + 1));
+        }
+        raf.close();
+        RingBuffer.open(TEST_DATA_FILE).close();
+
+        raf = new RandomAccessFile(TEST_DATA_FILE, "r");
+        raf.seek(RingBuffer.LOCK_POS);
+        assertEquals("Lock word not cleared", 0, raf.readLong());
+        raf.close();
+        writer = new SharedRingBuffer(TEST_DATA_FILE);
+        reader = new SharedRingBuffer(TEST_DATA_FILE);
+        assertEquals("Count not correct", 12, reader.getCount());
+        assertArrayEquals("Record content not correct", intToBytes(0x44444444), reader.peek());
+    }
+
+    @Test
+    public void concurrentCreateTest() throws Exception {
+        writer.close();
+        reader.close();
+        new File(TEST_DATA_FILE).delete();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    SharedRingBuffer srb = new SharedRingBuffer(TEST_DATA_FILE, 100, 4);
+                    srb.push(intToBytes(id));
+                    srb.close();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        writer = new SharedRingBuffer(TEST_DATA_FILE);
+        reader = new SharedRingBuffer(TEST_DATA_FILE);
+        assertEquals("Count not correct", threads.length, reader.getCount());
+        assertEquals("Sequence not correct", threads.length, reader.getSequence());
+    }
+
+    @Test
+    public void emptyFileTest() throws Exception {
+        writer.close();
+        reader.close();
+        new File(TEST_DATA_FILE).delete();
+        new RandomAccessFile(TEST_DATA_FILE, "rw").close();
+        writer = new SharedRingBuffer(TEST_DATA_FILE, 100, 4);
+        reader = new SharedRingBuffer(TEST_DATA_FILE);
+        writer.push(intToBytes(7));
+        assertArrayEquals("Record content not correct", intToBytes(7), reader.peek());
+    }
+}
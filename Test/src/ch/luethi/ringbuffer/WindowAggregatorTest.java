@@ -0,0 +1,150 @@
+package ch.luethi.ringbuffer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class WindowAggregatorTest {
+
+    private static final String TEST_DATA_FILE = "aggregate.dat";
+
+    private RingBuffer rb;
+    private WindowAggregator aggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        new File(TEST_DATA_FILE).delete();
+        rb = new RingBuffer(TEST_DATA_FILE, 50, 8);
+        aggregator = new WindowAggregator(rb, NumericField.intAt(4));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        aggregator.close();
+        rb.close();
+        new File(TEST_DATA_FILE).delete();
+    }
+
+    private byte[] record(final int i) {
+        ByteBuffer bb = ByteBuffer.allocate(8);
+        bb.putInt(4711);
+        bb.putInt(i);
+        return bb.array();
+    }
+
+    private void assertWindow(int num) {
+        byte[][] records = rb.peek(num);
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (byte[] ba : records) {
+            double v = ByteBuffer.wrap(ba).getInt(4);
+            sum += v;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        WindowStats stats = aggregator.window(num);
+        assertEquals("Count not correct", records.length, stats.getCount());
+        assertEquals("Sum not correct", sum, stats.getSum(), 0.0);
+        if (records.length > 0) {
+            assertEquals("Min not correct", min, stats.getMin(), 0.0);
+            assertEquals("Max not correct", max, stats.getMax(), 0.0);
+        }
+    }
+
+    private int value(int i) {
+        return (i * 7919) % 1000 - 500;
+    }
+
+    @Test
+    public void pushPopWindowTest() {
+        WindowStats empty = aggregator.window(10);
+        assertEquals("Count not correct", 0, empty.getCount());
+        assertTrue("Min not NaN", Double.isNaN(empty.getMin()));
+
+        for (int i = 0; i < 30; i++) {
+            rb.push(record(value(i)));
+        }
+        assertWindow(1);
+        assertWindow(10);
+        assertWindow(30);
+        assertWindow(100);
+        rb.pop();
+        rb.delete(4);
+        assertWindow(10);
+        assertWindow(25);
+    }
+
+    @Test
+    public void wrapWindowTest() {
+        for (int i = 0; i < 137; i++) {
+            rb.push(record(value(i)));
+        }
+        for (int n = 1; n <= 50; n += 7) {
+            assertWindow(n);
+        }
+        byte[][] records = new byte[20][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = record(-1000 - i);
+        }
+        rb.pushAll(records);
+        assertEquals("Min not correct", -1019, aggregator.window(5).getMin(), 0.0);
+        assertWindow(50);
+    }
+
+    @Test
+    public void changeCapacityWindowTest() {
+        for (int i = 0; i < 70; i++) {
+            rb.push(record(value(i)));
+        }
+        rb.changeCapacity(80);
+        assertWindow(50);
+        for (int i = 70; i < 100; i++) {
+            rb.push(record(value(i)));
+        }
+        assertWindow(80);
+        rb.changeCapacity(30);
+        assertWindow(30);
+    }
+
+    @Test
+    public void existingRecordsTest() {
+        aggregator.close();
+        for (int i = 0; i < 20; i++) {
+            rb.push(record(i));
+        }
+        aggregator = new WindowAggregator(rb, NumericField.intAt(4));
+        WindowStats stats = aggregator.window(10);
+        assertEquals("Sum not correct", 145, stats.getSum(), 0.0);
+        assertEquals("Mean not correct", 14.5, stats.getMean(), 0.0);
+    }
+
+    @Test
+    public void byteOrderTest() {
+        aggregator.close();
+        rb.close();
+        new File(TEST_DATA_FILE).delete();
+        LongRingBuffer lrb = new LongRingBuffer(TEST_DATA_FILE, 10);
+        lrb.push(42);
+        lrb.push(7);
+        lrb.close();
+        rb = RingBuffer.open(TEST_DATA_FILE);
+        aggregator = new WindowAggregator(rb, NumericField.longAt(0));
+        assertEquals("Sum not correct", 49, aggregator.window(2).getSum(), 0.0);
+        aggregator.close();
+
+        rb.setByteOrder(ByteOrder.LITTLE_ENDIAN);
+        rb.push(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(-3).array());
+        aggregator = new WindowAggregator(rb, NumericField.longAt(0).order(ByteOrder.LITTLE_ENDIAN));
+        assertEquals("Min not correct", -3, aggregator.window(1).getMin(), 0.0);
+        aggregator.close();
+        aggregator = new WindowAggregator(rb, NumericField.longAt(0));
+        assertEquals("Max not correct", -3, aggregator.window(1).getMax(), 0.0);
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Page aligned write path of a {@link RingBuffer} bypassing the page cache.
+ * <p>
+ * Writes are collected in an aligned staging buffer as long as they extend one
+ * contiguous range, which is written as whole pages once the buffer is full or
+ * the next write lands elsewhere. Only the partial pages at both ends of the
+ * range are read back and merged. The header lives on its own page, it is kept
+ * in memory and written after the data is forced to disk, so it never points
+ * at records which are not on disk yet. Writing the last partial page would
+ * grow the file to a page multiple, it is truncated back to the length set by
+ * the buffer. If the file system does not support direct I/O, the same staging
+ * is done through the page cache.
+ */
+class DirectWriter {
+
+    private static final int MIN_PAGE = 4096;
+    private static final int STAGE_PAGES = 64;
+
+    private final FileChannel channel;
+    private final int page;
+    private final ByteBuffer stage;
+    private final ByteBuffer header;
+    private final ByteBuffer edge;
+    private long stageStart;
+    private int dirtyFrom;
+    private int dirtyTo;
+    private boolean headerDirty;
+    private boolean unforced;
+    private long length;
+
+    DirectWriter(String dataFile, int page) throws IOException {
+        this.page = page;
+        Path path = Paths.get(dataFile);
+        FileChannel fc;
+        try {
+            fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, ExtendedOpenOption.DIRECT);
+        } catch (IOException e) {
+            fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (UnsupportedOperationException e) {
+            fc = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        channel = fc;
+        stage = aligned(page * STAGE_PAGES);
+        header = aligned(page);
+        edge = aligned(page);
+        readPage(0, header);
+    }
+
+    /**
+     * The page size used for a new direct buffer, at least the block size of
+     * the file store holding <code>dataFile</code>.
+     */
+    static int pageSize(String dataFile) {
+        long blockSize = 0;
+        try {
+            blockSize = Files.getFileStore(Paths.get(dataFile)).getBlockSize();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (UnsupportedOperationException e) {
+            // keep the default
+        }
+        return (int) Math.max(MIN_PAGE, blockSize);
+    }
+
+    /**
+     * The file length matching the header, the file is cut back to it after writing pages.
+     */
+    void setLength(long length) {
+        this.length = length;
+    }
+
+    void write(long pos, byte[] src, int off, int len) throws IOException {
+        while (len > 0) {
+            long rel = pos - stageStart;
+            if (dirtyTo > dirtyFrom && (rel < dirtyFrom || rel > dirtyTo || rel >= stage.capacity())) {
+                flush();
+            }
+            if (dirtyTo == dirtyFrom) {
+                stageStart = pos - (pos % page);
+                rel = pos - stageStart;
+                dirtyFrom = (int) rel;
+                dirtyTo = (int) rel;
+            }
+            int n = (int) Math.min(len, stage.capacity() - rel);
+            ByteBuffer bb = stage.duplicate();
+            bb.position((int) rel);
+            bb.put(src, off, n);
+            dirtyTo = Math.max(dirtyTo, (int) rel + n);
+            pos += n;
+            off += n;
+            len -= n;
+            if (dirtyTo == stage.capacity()) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Copies the staged bytes overlapping <code>[pos, pos + dst.length)</code> into <code>dst</code>.
+     */
+    void overlay(long pos, byte[] dst) {
+        long from = Math.max(pos, stageStart + dirtyFrom);
+        long to = Math.min(pos + dst.length, stageStart + dirtyTo);
+        if (from < to) {
+            ByteBuffer bb = stage.duplicate();
+            bb.position((int) (from - stageStart));
+            bb.get(dst, (int) (from - pos), (int) (to - from));
+        }
+    }
+
+    void writeHeader(int pos, byte[] src, int len) {
+        ByteBuffer bb = header.duplicate();
+        bb.position(pos);
+        bb.put(src, 0, len);
+        headerDirty = true;
+    }
+
+    void flush() throws IOException {
+        if (dirtyTo > dirtyFrom) {
+            int from = dirtyFrom - (dirtyFrom % page);
+            int to = ((dirtyTo + page - 1) / page) * page;
+            if (from < dirtyFrom) {
+                merge(from, from, dirtyFrom);
+            }
+            if (to > dirtyTo) {
+                merge(to - page, dirtyTo, to);
+            }
+            ByteBuffer bb = stage.duplicate();
+            bb.position(from).limit(to);
+            writeFully(bb, stageStart + from);
+            if (stageStart + to > length) {
+                channel.truncate(length);
+            }
+            dirtyFrom = 0;
+            dirtyTo = 0;
+            unforced = true;
+        }
+        if (headerDirty) {
+            if (unforced) {
+                channel.force(false);
+                unforced = false;
+            }
+            writeFully(header.duplicate(), 0);
+            headerDirty = false;
+        }
+    }
+
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /*
+     * Fills [from, to) of the page starting at pageStart in the staging buffer
+     * with the bytes on disk.
+     */
+    private void merge(int pageStart, int from, int to) throws IOException {
+        readPage(stageStart + pageStart, edge);
+        ByteBuffer src = edge.duplicate();
+        src.position(from - pageStart).limit(to - pageStart);
+        ByteBuffer dst = stage.duplicate();
+        dst.position(from);
+        dst.put(src);
+    }
+
+    /*
+     * A page beyond the end of the file reads as zeros.
+     */
+    private void readPage(long pos, ByteBuffer dst) throws IOException {
+        dst.clear();
+        int n = channel.read(dst, pos);
+        dst.position(Math.max(n, 0));
+        while (dst.hasRemaining()) {
+            dst.put((byte) 0);
+        }
+        dst.clear();
+    }
+
+    private void writeFully(ByteBuffer bb, long pos) throws IOException {
+        while (bb.hasRemaining()) {
+            pos += channel.write(bb, pos);
+        }
+    }
+
+    private ByteBuffer aligned(int len) {
+        ByteBuffer bb = ByteBuffer.allocateDirect(len + page).alignedSlice(page);
+        bb.limit(len);
+        return bb.slice();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Ring buffer of <code>double</code> values without per record allocation.
+ * <p>
+ * Values are read and written directly in the mapped file, bulk operations
+ * copy whole runs of slots at once. Like {@link RingBuffer#peek(int)}, the
+ * peek methods return the newest value first.
+ */
+public class DoubleRingBuffer extends PrimitiveRingBuffer {
+
+    private final DoubleBuffer values;
+
+    public DoubleRingBuffer(String dataFile, long initCapacity) {
+        this(dataFile, initCapacity, true);
+    }
+
+    public DoubleRingBuffer(String dataFile, long initCapacity, boolean newBuffer) {
+        super(dataFile, initCapacity, newBuffer);
+        values = values().asDoubleBuffer();
+    }
+
+    private DoubleRingBuffer(String dataFile) {
+        super(dataFile);
+        values = values().asDoubleBuffer();
+    }
+
+    /**
+     * Opens an existing buffer with record length 8, the capacity is taken from the file.
+     */
+    public static DoubleRingBuffer open(String dataFile) {
+        return new DoubleRingBuffer(dataFile);
+    }
+
+    public synchronized void push(double value) {
+        values.put(nextSlot(), value);
+        updateHeader();
+    }
+
+    public synchronized double pop() {
+        double value = values.get(popSlot());
+        updateHeader();
+        return value;
+    }
+
+    public synchronized double peek() {
+        checkNotEmpty();
+        return values.get((int) last);
+    }
+
+    /**
+     * Copies up to <code>n</code> of the newest values into <code>dst</code>, newest first.
+     *
+     * @return number of values copied
+     */
+    public synchronized int peek(double[] dst, int n) {
+        int num = (int) Math.min(Math.min(n, dst.length), count);
+        if (num <= 0) {
+            return 0;
+        }
+        int first = firstSlot(num);
+        int head = (int) Math.min(num, capacity - first);
+        values.position(first);
+        values.get(dst, 0, head);
+        if (head < num) {
+            values.position(0);
+            values.get(dst, head, num - head);
+        }
+        reverse(dst, num);
+        return num;
+    }
+
+    /**
+     * Pushes all values in the given order with a single header update.
+     * Values which would be overwritten within the same call are skipped.
+     */
+    public synchronized void pushAll(double[] src) {
+        checkCapacity();
+        int off = (int) Math.max(0, src.length - capacity);
+        int len = src.length - off;
+        int slot = (int) ((last + 1 + off) % capacity);
+        int head = (int) Math.min(len, capacity - slot);
+        values.position(slot);
+        values.put(src, off, head);
+        if (head < len) {
+            values.position(0);
+            values.put(src, off + head, len - head);
+        }
+        advance(src.length);
+        updateHeader();
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+/**
+ * Extracts the numeric value of a record which is aggregated by a {@link WindowAggregator}.
+ */
+public interface FieldExtractor {
+
+    /**
+     * Returns the value of the record starting at <code>off</code> in <code>data</code>.
+     */
+    double extract(byte[] data, int off);
+}
@@ -0,0 +1,114 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.nio.ByteOrder;
+
+/**
+ * {@link FieldExtractor} for a number at a fixed offset in the record.
+ * <p>
+ * Unless set with {@link #order(ByteOrder)}, the byte order is the one of the
+ * buffer, see {@link RingBuffer#getByteOrder()}, once a {@link WindowAggregator}
+ * is created with the field; used on its own the field is big endian.
+ */
+public class NumericField implements FieldExtractor {
+
+    private static final int BYTE = 1;
+    private static final int SHORT = 2;
+    private static final int INT = 4;
+    private static final int LONG = 8;
+    private static final int FLOAT = -4;
+    private static final int DOUBLE = -8;
+
+    private final int offset;
+    private final int type;
+    private final ByteOrder order;
+
+    private NumericField(int offset, int type, ByteOrder order) {
+        this.offset = offset;
+        this.type = type;
+        this.order = order;
+    }
+
+    public static NumericField byteAt(int offset) {
+        return new NumericField(offset, BYTE, null);
+    }
+
+    public static NumericField shortAt(int offset) {
+        return new NumericField(offset, SHORT, null);
+    }
+
+    public static NumericField intAt(int offset) {
+        return new NumericField(offset, INT, null);
+    }
+
+    public static NumericField longAt(int offset) {
+        return new NumericField(offset, LONG, null);
+    }
+
+    public static NumericField floatAt(int offset) {
+        return new NumericField(offset, FLOAT, null);
+    }
+
+    public static NumericField doubleAt(int offset) {
+        return new NumericField(offset, DOUBLE, null);
+    }
+
+    /**
+     * The same field read in the given byte order.
+     */
+    public NumericField order(ByteOrder order) {
+        return new NumericField(offset, type, order);
+    }
+
+    /*
+     * The field in the byte order of rb, unless an order was set explicitly.
+     */
+    NumericField orderOf(RingBuffer rb) {
+        return order != null ? this : order(rb.getByteOrder());
+    }
+
+    public double extract(byte[] data, int off) {
+        int len = Math.abs(type);
+        long bits = 0;
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            for (int i = off + offset + len - 1; i >= off + offset; i--) {
+                bits = (bits << 8) | (data[i] & 0xFF);
+            }
+        } else {
+            for (int i = off + offset; i < off + offset + len; i++) {
+                bits = (bits << 8) | (data[i] & 0xFF);
+            }
+        }
+        switch (type) {
+            case BYTE:
+                return (byte) bits;
+            case SHORT:
+                return (short) bits;
+            case INT:
+                return (int) bits;
+            case FLOAT:
+                return Float.intBitsToFloat((int) bits);
+            case DOUBLE:
+                return Double.longBitsToDouble(bits);
+            default:
+                return bits;
+        }
+    }
+}
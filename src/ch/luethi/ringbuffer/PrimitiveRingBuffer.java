@@ -0,0 +1,216 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Base of the ring buffers holding one 8 byte primitive per record.
+ * <p>
+ * The file has the layout of a {@link RingBuffer} with record length 8 and is
+ * mapped completely. The header is kept big endian. A new buffer stores the
+ * values in native byte order so they can be copied in bulk without
+ * conversion, the order is recorded in the header flags. Existing files are
+ * read in their recorded order, so they can be moved between hosts.
+ */
+abstract class PrimitiveRingBuffer {
+
+    static final int VALUE_LEN = 8;
+
+    public final String dataFile;
+    final long capacity;
+    long count;
+    long last;
+    long sequence;
+    private final int dataOffset;
+    private final ByteOrder order;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+
+    PrimitiveRingBuffer(String dataFile, long initCapacity, boolean newBuffer) {
+        this(dataFile, create(dataFile, initCapacity, newBuffer));
+    }
+
+    PrimitiveRingBuffer(String dataFile) {
+        this(dataFile, RingBuffer.open(dataFile));
+    }
+
+    private PrimitiveRingBuffer(String dataFile, RingBuffer rb) {
+        this.dataFile = dataFile;
+        capacity = rb.getCapacity();
+        count = rb.getCount();
+        last = rb.getLast();
+        sequence = rb.getSequence();
+        dataOffset = rb.getDataOffset();
+        order = rb.getByteOrder();
+        int slotLen = rb.getSlotLen();
+        rb.close();
+        if (slotLen != VALUE_LEN) {
+            throw new RuntimeException("Record length error, length must be " + VALUE_LEN);
+        }
+        long size = dataOffset + (capacity * VALUE_LEN);
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Storage too large to be mapped: " + size + " bytes");
+        }
+        try {
+            raf = new RandomAccessFile(dataFile, "rw");
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Storage file not mappable: " + dataFile, e);
+        }
+    }
+
+    private static RingBuffer create(String dataFile, long initCapacity, boolean newBuffer) {
+        if (!newBuffer && (new File(dataFile)).exists()) {
+            return new RingBuffer(dataFile, initCapacity, VALUE_LEN, false);
+        }
+        RingBuffer rb = new RingBuffer(dataFile, initCapacity, VALUE_LEN);
+        rb.setByteOrder(ByteOrder.nativeOrder());
+        return rb;
+    }
+
+    /**
+     * The data region of the mapping in the byte order of the file.
+     */
+    ByteBuffer values() {
+        ByteBuffer bb = map.duplicate();
+        bb.position(dataOffset);
+        return bb.slice().order(order);
+    }
+
+    public synchronized void close() {
+        map = null;
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized void delete() {
+        delete(1);
+    }
+
+    public synchronized void delete(int num) {
+        if (count > 0) {
+            long mnum = Math.min(count, num);
+            count = count - mnum;
+            last = last >= mnum ? last - mnum : capacity - (mnum - last);
+            updateHeader();
+        }
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getLast() {
+        return last;
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Advances the header for one pushed value and returns its slot.
+     */
+    int nextSlot() {
+        checkCapacity();
+        count = Math.min(count + 1, capacity);
+        last = (last + 1) % capacity;
+        sequence++;
+        return (int) last;
+    }
+
+    void checkCapacity() {
+        if (capacity == 0) {
+            throw new RuntimeException("Storage capacity is 0");
+        }
+    }
+
+    /**
+     * Removes the newest value from the header and returns its slot.
+     */
+    int popSlot() {
+        checkNotEmpty();
+        int slot = (int) last;
+        count = count - 1;
+        last = (last == 0 ? capacity : last) - 1;
+        return slot;
+    }
+
+    /**
+     * Advances the header for <code>num</code> pushed values.
+     */
+    void advance(int num) {
+        count = Math.min(count + num, capacity);
+        last = (last + num) % capacity;
+        sequence += num;
+    }
+
+    void checkNotEmpty() {
+        if (count == 0) {
+            throw new RuntimeException("Storage is empty");
+        }
+    }
+
+    /**
+     * First slot of the newest <code>num</code> values.
+     */
+    int firstSlot(int num) {
+        return (int) ((last - num + 1 + capacity) % capacity);
+    }
+
+    void updateHeader() {
+        map.putLong(RingBuffer.COUNT_POS, count);
+        map.putLong(RingBuffer.LAST_POS, last);
+        map.putLong(RingBuffer.SEQUENCE_POS, sequence);
+    }
+
+    static void reverse(long[] a, int len) {
+        for (int i = 0, j = len - 1; i < j; i++, j--) {
+            long t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+
+    static void reverse(double[] a, int len) {
+        for (int i = 0, j = len - 1; i < j; i++, j--) {
+            double t = a[i];
+            a[i] = a[j];
+            a[j] = t;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Applies the batches shipped by a {@link ReplicationLeader} to a local
+ * {@link RingBuffer} with the same record length and record TTL setting.
+ * <p>
+ * The slot frames of a batch are collected until the terminating header frame
+ * arrives, then written and followed by a single header update.
+ */
+public class ReplicationFollower implements Runnable {
+
+    private final RingBuffer rb;
+    private final DataInputStream in;
+
+    private final ArrayList<Long> batchSlots = new ArrayList<Long>();
+    private final ArrayList<byte[]> batchData = new ArrayList<byte[]>();
+    private long batchBytes;
+    private volatile long leaderSequence;
+    private volatile long appliedSequence;
+    private volatile long pendingBytes;
+    private volatile boolean closed;
+
+    public ReplicationFollower(RingBuffer rb, InputStream in) {
+        this.rb = rb;
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    /**
+     * Reads and applies the next batch, blocking until it is complete.
+     *
+     * @return number of records applied, -1 if the leader closed the stream
+     */
+    public int poll() {
+        try {
+            while (true) {
+                byte type = in.readByte();
+                if (type == ReplicationLeader.FRAME_SLOTS) {
+                    leaderSequence = Math.max(leaderSequence, in.readLong());
+                    long slot = in.readLong();
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    batchSlots.add(slot);
+                    batchData.add(data);
+                    batchBytes += data.length;
+                    pendingBytes = batchBytes;
+                } else if (type == ReplicationLeader.FRAME_HEADER) {
+                    long sequence = in.readLong();
+                    int slotLen = in.readInt();
+                    long count = in.readLong();
+                    long last = in.readLong();
+                    long capacity = in.readLong();
+                    if (slotLen != rb.getSlotLen()) {
+                        throw new RuntimeException("Replication slot length error, length must be " + rb.getSlotLen());
+                    }
+                    leaderSequence = Math.max(leaderSequence, sequence);
+                    int records = applyBatch(count, last, capacity, sequence);
+                    peekSequence();
+                    return records;
+                } else {
+                    throw new RuntimeException("Replication frame type unknown: " + type);
+                }
+            }
+        } catch (EOFException e) {
+            return -1;
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Applies batches until the leader closes the stream or {@link #close()} is called.
+     */
+    public void run() {
+        while (!closed) {
+            if (poll() < 0) {
+                break;
+            }
+        }
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            in.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Records written by the leader which are not yet applied here, as far as
+     * known from the frames received. Every frame carries the sequence of the
+     * leader when it was sent, the next frame waiting in the transport counts
+     * as received.
+     */
+    public long getLagRecords() {
+        return leaderSequence - appliedSequence;
+    }
+
+    /**
+     * Bytes received or waiting in the transport which are not yet applied.
+     */
+    public long getLagBytes() {
+        long available = 0;
+        try {
+            available = in.available();
+        } catch (IOException e) {
+            // stream closed, nothing waiting
+        }
+        return pendingBytes + available;
+    }
+
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    private int applyBatch(long count, long last, long capacity, long sequence) {
+        int records = 0;
+        for (int i = 0; i < batchSlots.size(); i++) {
+            byte[] data = batchData.get(i);
+            rb.applySlots(batchSlots.get(i), data);
+            records += data.length / rb.getSlotLen();
+        }
+        rb.applyHeader(count, last, capacity, sequence);
+        batchSlots.clear();
+        batchData.clear();
+        batchBytes = 0;
+        pendingBytes = 0;
+        appliedSequence = sequence;
+        return records;
+    }
+
+    /*
+     * Reads the leader sequence of the next frame if it is already received,
+     * without consuming it.
+     */
+    private void peekSequence() throws IOException {
+        if (in.available() >= 9) {
+            in.mark(9);
+            in.readByte();
+            leaderSequence = Math.max(leaderSequence, in.readLong());
+            in.reset();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+
+/**
+ * Ships the changes of a {@link RingBuffer} to a {@link ReplicationFollower}.
+ * <p>
+ * Written slot ranges are collected and sent together with the latest header
+ * as one batch. Contiguous slot writes are coalesced into a single frame. A
+ * batch is closed on {@link #flush()} or by the first header update after
+ * <code>batchBytes</code> of slot data are pending, so it never ships slots
+ * without the header describing them. The listener callbacks run with the
+ * buffer lock held and only copy the frames into a queue. A sender thread
+ * writes the queue to the transport, any <code>OutputStream</code>, e.g. a
+ * socket or a pipe, so a slow follower never blocks the buffer.
+ * <p>
+ * If the transport fails or the follower falls more than
+ * {@link #MAX_QUEUED_BATCHES} batches behind, the leader stops shipping and
+ * {@link #flush()} and {@link #getSequence()} throw. The follower is lost then,
+ * it must be seeded again by a new leader with {@link #sync()}.
+ */
+public class ReplicationLeader implements RingBufferListener {
+
+    static final byte FRAME_SLOTS = 1;
+    static final byte FRAME_HEADER = 2;
+
+    public static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+    public static final int MAX_QUEUED_BATCHES = 256;
+
+    private final RingBuffer rb;
+    private final OutputStream transport;
+    private final OutputStream out;
+    private final int batchBytes;
+    private final int slotLen;
+    private final Thread sender;
+
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long pendingSlot = -1;
+    private long pendingBytes;
+    private boolean headerPending;
+    private long count;
+    private long last;
+    private long capacity;
+    private long sequence;
+
+    private final LinkedList<byte[]> queue = new LinkedList<byte[]>();
+    private long queuedBatches;
+    private long sentBatches;
+    private IOException failure;
+    private boolean closing;
+
+    public ReplicationLeader(RingBuffer rb, OutputStream out) {
+        this(rb, out, DEFAULT_BATCH_BYTES);
+    }
+
+    public ReplicationLeader(RingBuffer rb, OutputStream out, int batchBytes) {
+        this.rb = rb;
+        this.transport = out;
+        this.out = new BufferedOutputStream(out);
+        this.batchBytes = batchBytes;
+        this.slotLen = rb.getSlotLen();
+        synchronized (rb) {
+            this.count = rb.getCount();
+            this.last = rb.getLast();
+            this.capacity = rb.getCapacity();
+            this.sequence = rb.getSequence();
+            rb.addListener(this);
+        }
+        sender = new Thread(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, "ReplicationLeader");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Ships the complete content of the buffer, used to seed a new follower.
+     * The buffer lock is taken for one batch at a time, writes go on in between
+     * and are shipped after the slots read so far.
+     */
+    public void sync() {
+        int chunk = Math.max(1, batchBytes / slotLen);
+        for (long slot = 0; ; slot += chunk) {
+            synchronized (rb) {
+                long cap = rb.getCapacity();
+                if (slot >= cap) {
+                    break;
+                }
+                slotsWritten(slot, rb.readSlots(slot, (int) Math.min(chunk, cap - slot)));
+                headerUpdated(rb.getCount(), rb.getLast(), cap);
+                seal();
+            }
+            awaitQueue(MAX_QUEUED_BATCHES / 2);
+        }
+        synchronized (rb) {
+            headerUpdated(rb.getCount(), rb.getLast(), rb.getCapacity());
+        }
+        flush();
+    }
+
+    public void slotsWritten(long slot, byte[] data) {
+        if (pendingSlot >= 0 && slot != pendingSlot + (pending.size() / slotLen)) {
+            writeSlotsFrame();
+        }
+        if (pendingSlot < 0) {
+            pendingSlot = slot;
+        }
+        pending.write(data, 0, data.length);
+        pendingBytes += data.length;
+    }
+
+    public void headerUpdated(long count, long last, long capacity) {
+        this.count = count;
+        this.last = last;
+        this.capacity = capacity;
+        this.sequence = rb.getSequence();
+        headerPending = true;
+        if (pendingBytes >= batchBytes) {
+            seal();
+        }
+    }
+
+    /**
+     * Queues the pending batch, terminated by the latest header, and waits
+     * until the queue is written to the transport.
+     */
+    public void flush() {
+        long target;
+        synchronized (rb) {
+            seal();
+            synchronized (queue) {
+                target = queuedBatches;
+            }
+        }
+        synchronized (queue) {
+            while (sentBatches < target && failure == null) {
+                if (!await()) {
+                    return;
+                }
+            }
+            checkFailure();
+        }
+    }
+
+    public void close() {
+        synchronized (rb) {
+            rb.removeListener(this);
+            seal();
+        }
+        synchronized (queue) {
+            closing = true;
+            queue.notifyAll();
+        }
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            synchronized (queue) {
+                // the buffered bytes of a failed transport are dropped
+                (failure == null ? out : transport).close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The sequence of the buffer as of the latest header shipped or pending.
+     */
+    public long getSequence() {
+        synchronized (rb) {
+            synchronized (queue) {
+                checkFailure();
+            }
+            return sequence;
+        }
+    }
+
+    /*
+     * Moves the pending frames to the queue, called with the buffer lock held.
+     */
+    private void seal() {
+        if (pendingSlot < 0 && !headerPending) {
+            return;
+        }
+        writeSlotsFrame();
+        ByteBuffer bb = ByteBuffer.allocate(37);
+        bb.put(FRAME_HEADER).putLong(sequence).putInt(slotLen).putLong(count).putLong(last).putLong(capacity);
+        batch.write(bb.array(), 0, bb.position());
+        headerPending = false;
+        pendingBytes = 0;
+        synchronized (queue) {
+            if (failure == null && queue.size() >= MAX_QUEUED_BATCHES) {
+                fail(new IOException("Replication follower too slow, " + queue.size() + " batches queued"));
+            }
+            if (failure == null) {
+                queue.add(batch.toByteArray());
+                queuedBatches++;
+                queue.notifyAll();
+            }
+        }
+        batch.reset();
+    }
+
+    private void writeSlotsFrame() {
+        if (pendingSlot < 0) {
+            return;
+        }
+        ByteBuffer bb = ByteBuffer.allocate(21);
+        bb.put(FRAME_SLOTS).putLong(rb.getSequence()).putLong(pendingSlot).putInt(pending.size());
+        batch.write(bb.array(), 0, bb.position());
+        batch.write(pending.toByteArray(), 0, pending.size());
+        pending.reset();
+        pendingSlot = -1;
+    }
+
+    /*
+     * Body of the sender thread, runs until closed or the transport fails.
+     */
+    private void send() {
+        while (true) {
+            byte[] ba;
+            synchronized (queue) {
+                while (queue.isEmpty() && !closing && failure == null) {
+                    if (!await()) {
+                        return;
+                    }
+                }
+                if (queue.isEmpty() || failure != null) {
+                    return;
+                }
+                ba = queue.removeFirst();
+            }
+            try {
+                out.write(ba);
+                out.flush();
+            } catch (IOException e) {
+                synchronized (queue) {
+                    fail(e);
+                }
+                return;
+            }
+            synchronized (queue) {
+                sentBatches++;
+                queue.notifyAll();
+            }
+        }
+    }
+
+    private void awaitQueue(int size) {
+        synchronized (queue) {
+            while (queue.size() > size && failure == null) {
+                if (!await()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * Waits on the queue, false if the thread was interrupted.
+     */
+    private boolean await() {
+        try {
+            queue.wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        queue.clear();
+        queue.notifyAll();
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Replication failed, follower must be synced again: " + failure.getMessage(), failure);
+        }
+    }
+}
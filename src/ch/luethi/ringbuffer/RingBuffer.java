@@ -19,11 +19,18 @@
 package ch.luethi.ringbuffer;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
+import static java.util.Arrays.copyOf;
 import static java.util.Arrays.copyOfRange;
 
 public class RingBuffer {
@@ -33,63 +40,271 @@ public class RingBuffer {
     private long capacity = 0;
     private long count;
     private long last;
+    private long sequence;
+
+    /*
+     * Header layout, all values big endian:
+     *   0 int  magic
+     *   4 int  version
+     *   8 int  recLen
+     *  12 int  flags
+     *  16 long capacity
+     *  24 int  dataOffset
+     *  28 int  checksum, CRC32 of bytes 0..27
+     *  32 long count
+     *  40 long last
+     *  48 long sequence, number of records pushed so far
+     *  56 long lock word, used by SharedRingBuffer
+     *  64 long default record TTL in milliseconds, since version 2
+     * The fields up to the checksum change only with the capacity, count, last
+     * and sequence are rewritten on every modification. Version 1 headers end
+     * at byte 64, their data starts there.
+     */
+    private static final int MAGIC = 0x52696E67;
+    private static final int VERSION = 2;
+    private static final int HEADER_LEN = 72;
+    private static final int V1_HEADER_LEN = 64;
+    private static final int LEGACY_HEADER_LEN = 20;
+    private static final int STATIC_HEADER_LEN = 28;
+    static final int COUNT_POS = 32;
+    static final int LAST_POS = 40;
+    static final int SEQUENCE_POS = 48;
+    static final int LOCK_POS = 56;
+    private static final int TTL_POS = 64;
+    private static final int MIGRATE_CHUNK = 1024 * 1024;
+    private static final String MIGRATE_SUFFIX = ".migrate";
+
+    /*
+     * With FLAG_TTL every slot holds the record followed by its expiry time in
+     * milliseconds, 0 for a record which never expires.
+     */
+    static final int FLAG_TTL = 1;
+    private static final int EXPIRY_LEN = 8;
+    private static final int EXPIRE_CHUNK = 1024;
+
+    /*
+     * With FLAG_DIRECT writes bypass the page cache, see DirectWriter. The data
+     * starts on the second page so the header has a page of its own.
+     */
+    static final int FLAG_DIRECT = 2;
+
+    /*
+     * With FLAG_LITTLE_ENDIAN the records hold little endian values, as written
+     * by LongRingBuffer and DoubleRingBuffer on such hosts.
+     */
+    static final int FLAG_LITTLE_ENDIAN = 4;
 
-    private static final byte HEADER_LEN = 20;
     private int recLen;
+    private int slotLen;
+    private int flags;
+    private long ttl;
+    private int dataOffset = HEADER_LEN;
+    private long headerCapacity = -1;
     private RandomAccessFile raf;
+    private DirectWriter direct;
+    private SlotCache cache;
+    private int readAhead;
+    private final byte[] headerBuf = new byte[STATIC_HEADER_LEN + 4];
+    private final ArrayList<RingBufferListener> listeners = new ArrayList<RingBufferListener>();
+    private final ArrayList<RingBufferSnapshot> snapshots = new ArrayList<RingBufferSnapshot>();
 
 
     public RingBuffer(String dataFile, long initCapacity, int newRecLen) {
         createNewBuffer(dataFile, initCapacity, newRecLen);
     }
 
+    /**
+     * Opens <code>dataFile</code> if it exists, otherwise creates a new buffer.
+     * An existing buffer with a different capacity is resized by {@link #changeCapacity(long)},
+     * a smaller capacity drops the oldest records which do not fit any more.
+     * An existing buffer with a different record length is never overwritten.
+     */
     public RingBuffer(String dataFile, long initCapacity, int newRecLen, boolean newBuffer) {
         if (newBuffer) {
             createNewBuffer(dataFile, initCapacity, newRecLen);
         } else {
-            try {
-                boolean rafExits = (new File(dataFile)).exists();
-                if (rafExits) {
-                    raf = new RandomAccessFile(dataFile, "rw");
-                    readRecLen();
-                    long length = raf.length();
-                    capacity = (length - HEADER_LEN) / newRecLen;
-                    if (initCapacity == capacity & newRecLen == getRecLen()) {
-                        readHeader();
-                    } else {
-                        createNewBuffer(dataFile, initCapacity, newRecLen);
-                    }
-                } else {
-                    createNewBuffer(dataFile, initCapacity, newRecLen);
+            boolean rafExits = (new File(dataFile)).exists();
+            if (rafExits) {
+                openBuffer(dataFile);
+                if (newRecLen != getRecLen()) {
+                    close();
+                    throw new RuntimeException("Record length error, existing buffer has length " + recLen);
                 }
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (initCapacity != capacity) {
+                    changeCapacity(initCapacity);
+                }
+            } else {
+                createNewBuffer(dataFile, initCapacity, newRecLen);
             }
+        }
+    }
+
+    /**
+     * Creates a new buffer which stores an expiry time with every record.
+     * Records pushed without their own TTL expire after <code>ttlMillis</code>,
+     * 0 means they never expire. Expired records are skipped by peek and pop.
+     */
+    public RingBuffer(String dataFile, long initCapacity, int newRecLen, long ttlMillis) {
+        flags = FLAG_TTL;
+        ttl = ttlMillis;
+        createNewBuffer(dataFile, initCapacity, newRecLen);
+    }
+
+    private RingBuffer() {
+    }
+
+    /**
+     * Creates a new buffer written with direct I/O where the platform supports it.
+     * Records are staged in memory and written as whole pages, call {@link #flush()}
+     * to write them earlier. Reading the file while records are staged, e.g. from
+     * another process, shows the state of the last flush.
+     */
+    public static RingBuffer createDirect(String dataFile, long initCapacity, int newRecLen) {
+        RingBuffer rb = new RingBuffer();
+        rb.flags = FLAG_DIRECT;
+        rb.createNewBuffer(dataFile, initCapacity, newRecLen);
+        rb.flush();
+        return rb;
+    }
 
+    /**
+     * Opens an existing buffer, record length and capacity are taken from the file.
+     * Only the header is read and validated, a file with a legacy header is replaced
+     * by a migrated copy.
+     */
+    public static RingBuffer open(String dataFile) {
+        if (!(new File(dataFile)).exists()) {
+            throw new RuntimeException("Storage file not found: " + dataFile);
         }
+        RingBuffer rb = new RingBuffer();
+        rb.openBuffer(dataFile);
+        return rb;
     }
 
     private void createNewBuffer(String dataFile, long initCapacity, int newRecLen) {
         this.dataFile = dataFile;
         try {
             raf = new RandomAccessFile(this.dataFile, "rw");
+            if ((flags & FLAG_DIRECT) != 0) {
+                dataOffset = DirectWriter.pageSize(dataFile);
+                direct = new DirectWriter(dataFile, dataOffset);
+            }
             setRecLen(newRecLen);
-            setCapacity(initCapacity);
             count = 0;
             last = 0;
-            writeRecLen(recLen);
-            updateHeader();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+            sequence = 0;
+            setCapacity(initCapacity);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    private void openBuffer(String dataFile) {
+        this.dataFile = dataFile;
+        try {
+            raf = new RandomAccessFile(dataFile, "rw");
+            raf.seek(0);
+            if (raf.length() >= V1_HEADER_LEN && raf.readInt() == MAGIC) {
+                readHeader();
+                if ((flags & FLAG_DIRECT) != 0) {
+                    direct = new DirectWriter(dataFile, dataOffset);
+                    direct.setLength(dataOffset + (capacity * slotLen));
+                }
+            } else {
+                migrateLegacyHeader();
+            }
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Storage file not readable: " + dataFile, e);
+        }
+    }
 
-    public void close() {
+    private void readHeader() throws IOException {
+        byte[] ba = new byte[V1_HEADER_LEN];
+        raf.seek(0);
+        raf.readFully(ba);
+        ByteBuffer bb = ByteBuffer.wrap(ba);
+        CRC32 crc = new CRC32();
+        crc.update(ba, 0, STATIC_HEADER_LEN);
+        if (bb.getInt(STATIC_HEADER_LEN) != (int) crc.getValue()) {
+            throw new IOException("Header checksum error");
+        }
+        int version = bb.getInt(4);
+        if (version > VERSION) {
+            throw new IOException("Header version " + version + " not supported");
+        }
+        flags = bb.getInt(12);
+        setRecLen(bb.getInt(8));
+        capacity = bb.getLong(16);
+        dataOffset = bb.getInt(24);
+        headerCapacity = capacity;
+        count = bb.getLong(COUNT_POS);
+        last = bb.getLong(LAST_POS);
+        sequence = bb.getLong(SEQUENCE_POS);
+        if (raf.length() < dataOffset + (capacity * slotLen)) {
+            throw new IOException("Storage file is shorter than its capacity");
+        }
+        if (version >= 2) {
+            raf.seek(TTL_POS);
+            ttl = raf.readLong();
+        }
+    }
+
+    /*
+     * The legacy header holds recLen, count and last only, the capacity follows
+     * from the file length. The records are copied behind the new header into a
+     * sibling file, which replaces the data file by an atomic rename once it is
+     * complete and on disk. A crash on the way leaves the legacy file untouched.
+     */
+    private void migrateLegacyHeader() throws IOException {
+        long length = raf.length();
+        raf.seek(0);
+        setRecLen(raf.readInt());
+        if (length < LEGACY_HEADER_LEN || recLen <= 0 || (length - LEGACY_HEADER_LEN) % recLen != 0) {
+            throw new IOException("Unknown storage file format");
+        }
+        count = raf.readLong();
+        last = raf.readLong();
+        capacity = (length - LEGACY_HEADER_LEN) / recLen;
+        sequence = count;
+        long dataLen = length - LEGACY_HEADER_LEN;
+        File migrated = new File(dataFile + MIGRATE_SUFFIX);
+        RandomAccessFile legacy = raf;
+        raf = new RandomAccessFile(migrated, "rw");
+        try {
+            raf.setLength(HEADER_LEN + dataLen);
+            byte[] ba = new byte[(int) Math.min(MIGRATE_CHUNK, dataLen)];
+            for (long pos = 0; pos < dataLen; pos += ba.length) {
+                int len = (int) Math.min(ba.length, dataLen - pos);
+                legacy.seek(LEGACY_HEADER_LEN + pos);
+                legacy.readFully(ba, 0, len);
+                raf.seek(HEADER_LEN + pos);
+                raf.write(ba, 0, len);
+            }
+            dataOffset = HEADER_LEN;
+            updateHeader();
+            raf.getFD().sync();
+        } finally {
+            raf.close();
+            legacy.close();
+        }
+        Files.move(migrated.toPath(), Paths.get(dataFile), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        raf = new RandomAccessFile(dataFile, "rw");
+    }
+
+
+    public synchronized void close() {
+        if (raf == null) {
+            return;
+        }
+        if (direct != null) {
+            try {
+                direct.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            direct = null;
+        }
         try {
             raf.close();
         } catch (IOException e) {
@@ -98,20 +313,40 @@ public class RingBuffer {
     }
 
 
+    /**
+     * Writes the records and the header staged by a direct buffer, does nothing otherwise.
+     */
+    public synchronized void flush() {
+        if (direct == null) {
+            return;
+        }
+        try {
+            direct.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void setCapacity(long initCapacity) {
         try {
             capacity = initCapacity;
-            raf.setLength((capacity * recLen) + HEADER_LEN);
+            setLength((capacity * slotLen) + dataOffset);
             updateHeader();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public void changeCapacity(long newCapacity) {
+    public synchronized void changeCapacity(long newCapacity) {
+        if (cache != null) {
+            cache.clear();
+        }
+        if (newCapacity != capacity) {
+            preserveAll();
+        }
         try {
             if (newCapacity > capacity) {
-                raf.setLength((newCapacity * recLen) + HEADER_LEN);
+                setLength((newCapacity * slotLen) + dataOffset);
                 long dif = (last - count);
                 if (dif < 0) {
                     dif = Math.abs(dif);
@@ -120,13 +355,12 @@ public class RingBuffer {
                 capacity = newCapacity;
                 updateHeader();
             } else if (newCapacity < capacity) {
-                long dif = (last - newCapacity);
-                if (dif > 0) {
+                if (last >= newCapacity) {
                     count = Math.min(count, newCapacity);
-                    move(last - count, 0, (int) count + 1);
-                    last = count;
+                    move(last - count + 1, 0, (int) count);
+                    last = Math.max(count - 1, 0);
                 } else {
-                    dif = (last - count);
+                    long dif = (last - count);
                     if (dif < 0) {
                         dif = Math.abs(dif);
                         dif = Math.min(dif, newCapacity - last - 1);
@@ -134,23 +368,24 @@ public class RingBuffer {
                         count = Math.min(count, newCapacity);
                     }
                 }
-                setCapacity(capacity + 1);
-                raf.setLength(((newCapacity + 1) * recLen) + HEADER_LEN);
+                setLength((newCapacity * slotLen) + dataOffset);
                 capacity = newCapacity;
                 updateHeader();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (cache != null) {
+            cache = new SlotCache(cache.size(), capacity);
+        }
     }
 
     private void move(long src, long dst, int len) {
-        byte[] ba = new byte[len * recLen];
+        byte[] ba = new byte[len * slotLen];
         try {
-            raf.seek(HEADER_LEN + (src * recLen));
-            raf.read(ba);
-            raf.seek(HEADER_LEN + (dst * recLen));
-            raf.write(ba);
+            readAt(dataOffset + (src * slotLen), ba);
+            writeAt(dataOffset + (dst * slotLen), ba);
+            fireSlotsWritten(dst, ba);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -158,85 +393,305 @@ public class RingBuffer {
     }
 
 
-    public long getRecLen() {
+    public synchronized long getRecLen() {
         return recLen;
     }
 
-    public void setRecLen(int recLen) {
+    public synchronized void setRecLen(int recLen) {
         this.recLen = recLen;
+        this.slotLen = recLen + ((flags & FLAG_TTL) != 0 ? EXPIRY_LEN : 0);
+    }
+
+    /**
+     * Sets the TTL for records pushed without their own TTL, 0 means they never expire.
+     */
+    public synchronized void setTtl(long ttlMillis) {
+        if (slotLen == recLen) {
+            throw new RuntimeException("Storage has no record TTL");
+        }
+        ttl = ttlMillis;
+        try {
+            writeTtl();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public synchronized long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * The byte order of the values in the records as recorded in the header,
+     * big endian unless the buffer was created by a primitive ring buffer on
+     * a little endian host.
+     */
+    public synchronized ByteOrder getByteOrder() {
+        return (flags & FLAG_LITTLE_ENDIAN) != 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+    }
+
+    synchronized void setByteOrder(ByteOrder order) {
+        if (order == ByteOrder.LITTLE_ENDIAN) {
+            flags |= FLAG_LITTLE_ENDIAN;
+        } else {
+            flags &= ~FLAG_LITTLE_ENDIAN;
+        }
+        try {
+            writeStaticHeader();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Keeps the newest slots in memory, at most <code>records</code> of them.
+     * Pushed records are written through to the cache, a read miss fetches
+     * <code>readAhead</code> slots backwards in one read. 0 records disables the cache.
+     */
+    public synchronized void setReadCache(int records, int readAhead) {
+        if (records <= 0) {
+            cache = null;
+            this.readAhead = 0;
+        } else {
+            cache = new SlotCache(records, capacity);
+            this.readAhead = Math.max(1, Math.min(readAhead, records));
+        }
     }
 
-    public void push(byte[] data) {
+    public synchronized void push(byte[] data) {
+        pushSlot(data, ttl);
+    }
+
+    /**
+     * Pushes a record which expires after <code>ttlMillis</code>, 0 means it never expires.
+     */
+    public synchronized void push(byte[] data, long ttlMillis) {
+        if (slotLen == recLen) {
+            throw new RuntimeException("Storage has no record TTL");
+        }
+        pushSlot(data, ttlMillis);
+    }
+
+    /**
+     * Pushes all records in the given order with a single header update.
+     * Records landing in consecutive slots are written at once.
+     */
+    public synchronized void pushAll(byte[][] records) {
+        for (byte[] data : records) {
+            if (data.length != recLen) {
+                throw new RuntimeException("Date length error, length must be " + recLen);
+            }
+        }
+        if (this.capacity == 0) {
+            throw new RuntimeException("Storage capacity is 0");
+        }
+        try {
+            int i = 0;
+            while (i < records.length) {
+                long slot = (last + 1) % capacity;
+                int num = (int) Math.min(records.length - i, capacity - slot);
+                preserve(slot, num);
+                byte[] run = new byte[num * slotLen];
+                for (int j = 0; j < num; j++) {
+                    byte[] slotData = toSlot(records[i + j], ttl);
+                    System.arraycopy(slotData, 0, run, j * slotLen, slotLen);
+                    if (cache != null) {
+                        cache.put(slot + j, slotData == records[i + j] ? slotData.clone() : slotData);
+                    }
+                }
+                writeAt(dataOffset + (slot * slotLen), run);
+                fireSlotsWritten(slot, run);
+                count = Math.min(count + num, capacity);
+                last = slot + num - 1;
+                sequence += num;
+                i += num;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        updateHeader();
+    }
+
+    private byte[] toSlot(byte[] data, long ttlMillis) {
+        if (slotLen == recLen) {
+            return data;
+        }
+        byte[] slotData = copyOf(data, slotLen);
+        long expiry = ttlMillis > 0 ? System.currentTimeMillis() + ttlMillis : 0;
+        for (int i = slotLen - 1; i >= recLen; i--) {
+            slotData[i] = (byte) expiry;
+            expiry >>>= 8;
+        }
+        return slotData;
+    }
+
+    private void pushSlot(byte[] data, long ttlMillis) {
         if (data.length != recLen) {
             throw new RuntimeException("Date length error, length must be " + recLen);
         }
         if (this.capacity == 0) {
             throw new RuntimeException("Storage capacity is 0");
         }
+        byte[] slotData = toSlot(data, ttlMillis);
         try {
             count = Math.min(count + 1, capacity);
             last = (last + 1) % capacity;
-            raf.seek(HEADER_LEN + (last * recLen));
-            raf.write(data);
+            sequence++;
+            preserve(last, 1);
+            writeAt(dataOffset + (last * slotLen), slotData);
+            if (cache != null) {
+                cache.put(last, slotData == data ? data.clone() : slotData);
+            }
+            fireSlotsWritten(last, slotData);
             updateHeader();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public byte[] pop() {
-        if (count > 0) {
+    /**
+     * Removes and returns the newest record, expired records on the way are dropped.
+     */
+    public synchronized byte[] pop() {
+        long now = System.currentTimeMillis();
+        byte[] ret = null;
+        long dropped = 0;
+        while (count > 0 && ret == null) {
             try {
-                raf.seek(HEADER_LEN + (last * recLen));
-                byte[] ba = new byte[recLen];
-                raf.read(ba);
+                byte[] ba = readSlot(last);
                 count = count - 1;
                 last = (last == 0 ? capacity : last) - 1;
-                updateHeader();
-                return ba;
+                if (isExpired(ba, 0, now)) {
+                    dropped++;
+                } else {
+                    ret = toRecord(ba);
+                }
             } catch (IOException e) {
                 e.printStackTrace();
+                break;
             }
         }
-        return null;
+        if (ret != null || dropped > 0) {
+            updateHeader();
+        }
+        return ret;
     }
 
-    public byte[] peek() {
-        if (count > 0) {
+    /**
+     * Removes and returns up to <code>num</code> of the oldest records, oldest first.
+     * Expired records are dropped on the way.
+     */
+    public synchronized byte[][] take(int num) {
+        ArrayList<byte[]> list = new ArrayList<byte[]>();
+        long now = System.currentTimeMillis();
+        long taken = 0;
+        while (list.size() < num && count > 0) {
+            long first = (last - count + 1 + capacity) % capacity;
+            int chunk = (int) Math.min(Math.min(num - list.size(), count), capacity - first);
+            byte[] ba = readSlots(first, chunk);
+            for (int i = 0; i < chunk; i++) {
+                if (!isExpired(ba, i * slotLen, now)) {
+                    list.add(copyOfRange(ba, i * slotLen, (i * slotLen) + recLen));
+                }
+            }
+            count = count - chunk;
+            taken += chunk;
+        }
+        if (taken > 0) {
+            updateHeader();
+        }
+        byte[][] ret = new byte[list.size()][recLen];
+        return list.toArray(ret);
+    }
+
+    public synchronized byte[] peek() {
+        long now = System.currentTimeMillis();
+        long tlast = last;
+        for (long i = 0; i < count; i++) {
             try {
-                raf.seek(HEADER_LEN + (last * recLen));
-                byte[] ba = new byte[recLen];
-                raf.read(ba);
-                return ba;
+                byte[] ba = readSlot(tlast);
+                if (!isExpired(ba, 0, now)) {
+                    return toRecord(ba);
+                }
+                tlast = (tlast == 0 ? capacity : tlast) - 1;
             } catch (IOException e) {
                 e.printStackTrace();
+                break;
             }
         }
         return null;
     }
 
-    public byte[][] peek(int num) {
+    /**
+     * Returns up to <code>num</code> records, newest first, skipping expired ones.
+     * Expired records found at the old end of the buffer are reclaimed.
+     */
+    public synchronized byte[][] peek(int num) {
         ArrayList<byte[]> list = new ArrayList<byte[]>(num);
+        long now = System.currentTimeMillis();
         long tlast = last;
-        long mnum = Math.min(count, num);
+        long scanned = 0;
+        long expiredRun = 0;
 
-        for (int i = 0; i < mnum; i++) {
+        while (scanned < count && list.size() < num) {
             try {
-                raf.seek(HEADER_LEN + (tlast * recLen));
-                byte[] ba = new byte[recLen];
-                raf.read(ba);
-                list.add(ba);
+                byte[] ba = readSlot(tlast);
+                if (isExpired(ba, 0, now)) {
+                    expiredRun++;
+                } else {
+                    list.add(toRecord(ba));
+                    expiredRun = 0;
+                }
+                scanned++;
                 tlast = (tlast == 0 ? capacity : tlast) - 1;
             } catch (IOException e) {
                 e.printStackTrace();
+                break;
             }
         }
+        if (scanned == count && expiredRun > 0) {
+            count = count - expiredRun;
+            updateHeader();
+        }
         byte[][] ret = new byte[list.size()][recLen];
         return list.toArray(ret);
     }
 
+    /**
+     * Reclaims the expired records at the old end of the buffer by lowering the count.
+     * The records are not rewritten.
+     *
+     * @return number of records reclaimed
+     */
+    public synchronized long expire() {
+        if (slotLen == recLen || count == 0) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long expired = 0;
+        long first = (last - count + 1 + capacity) % capacity;
+        boolean done = false;
+        while (!done && expired < count) {
+            int num = (int) Math.min(Math.min(EXPIRE_CHUNK, count - expired), capacity - first);
+            byte[] ba = readSlots(first, num);
+            for (int i = 0; i < num && !done; i++) {
+                if (isExpired(ba, i * slotLen, now)) {
+                    expired++;
+                } else {
+                    done = true;
+                }
+            }
+            first = (first + num) % capacity;
+        }
+        if (expired > 0) {
+            count = count - expired;
+            updateHeader();
+        }
+        return expired;
+    }
+
     // todo -- optimize with: public static byte[] copyOfRange(byte[] original, int from, int to)
-    public byte[][] peek2(int num) {
+    public synchronized byte[][] peek2(int num) {
         long tlast = last;
         int tnum = num;
         byte[] bax = new byte[0];
@@ -253,41 +708,41 @@ public class RingBuffer {
             tnum2 = (int) (mnum - tlast);
         }
         try {
-            raf.seek(HEADER_LEN + (tlast * recLen));
-            bax = new byte[tnum * recLen];
-            raf.read(bax);
+            bax = new byte[tnum * slotLen];
+            readAt(dataOffset + (tlast * slotLen), bax);
             if (tlast2 > 0) {
-                raf.seek(HEADER_LEN + (tlast2 * recLen));
-                bax2 = new byte[tnum2 * recLen];
-                raf.read(bax2);
+                bax2 = new byte[tnum2 * slotLen];
+                readAt(dataOffset + (tlast2 * slotLen), bax2);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
 
-        byte[][] ret = new byte[(bax.length + bax2.length) / recLen][recLen];
+        byte[][] ret = new byte[(bax.length + bax2.length) / slotLen][recLen];
         for (int i = 0; i < tnum; i++) {
-            ret[i] = copyOfRange(bax, i * recLen, (i + 1) * recLen);
+            ret[i] = copyOfRange(bax, i * slotLen, (i * slotLen) + recLen);
         }
         for (int i = 0; i < tnum2; i++) {
-            ret[i + tnum] = copyOfRange(bax2, i * recLen, (i + 1) * recLen);
+            ret[i + tnum] = copyOfRange(bax2, i * slotLen, (i * slotLen) + recLen);
         }
         // todo copy bax and bax2 to ret
         return ret;
     }
 
 
-    public void delete() {
+    public synchronized void delete() {
         if (count > 0) {
+            invalidate(last, 1);
             count = count - 1;
             last = (last == 0 ? capacity : last) - 1;
             updateHeader();
         }
     }
 
-    public void delete(int num) {
+    public synchronized void delete(int num) {
         if (count > 0) {
             long mnum = Math.min(count, num);
+            invalidate(last, mnum);
             count = count - mnum;
             last = last >= mnum ? last - mnum : capacity - (mnum - last);
             updateHeader();
@@ -295,46 +750,264 @@ public class RingBuffer {
     }
 
 
-    public long getCount() {
+    public synchronized long getCount() {
         return count;
     }
 
-    public long getCapacity() {
+    public synchronized long getCapacity() {
         return capacity;
     }
 
-    public long getLast() {
+    public synchronized long getLast() {
         return last;
     }
 
-    private void updateHeader() {
+    public synchronized void addListener(RingBufferListener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void removeListener(RingBufferListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Writes raw slot bytes as received from a replication leader.
+     */
+    synchronized void applySlots(long slot, byte[] data) {
         try {
-            raf.seek(4);
-            raf.writeLong(count);
-            raf.writeLong(last);
+            preserve(slot, data.length / slotLen);
+            writeAt(dataOffset + (slot * slotLen), data);
+            if (cache != null) {
+                for (int i = 0; i < data.length / slotLen; i++) {
+                    cache.invalidate(slot + i);
+                }
+            }
+            fireSlotsWritten(slot, data);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void readHeader() throws IOException {
-        raf.seek(4);
-        count = raf.readLong();
-        last = raf.readLong();
+    /**
+     * Reads the raw bytes of <code>num</code> consecutive slots.
+     */
+    synchronized byte[] readSlots(long slot, int num) {
+        byte[] ba = new byte[num * slotLen];
+        try {
+            readAt(dataOffset + (slot * slotLen), ba);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ba;
+    }
 
+    /**
+     * Takes over the header fields as received from a replication leader.
+     */
+    synchronized void applyHeader(long newCount, long newLast, long newCapacity) {
+        applyHeader(newCount, newLast, newCapacity, sequence);
     }
 
-    private void writeRecLen(int recLen) {
+    synchronized void applyHeader(long newCount, long newLast, long newCapacity, long newSequence) {
         try {
-            raf.seek(0);
-            raf.writeInt(recLen);
+            if (newCapacity != capacity) {
+                preserveAll();
+                setLength((newCapacity * slotLen) + dataOffset);
+                capacity = newCapacity;
+                if (cache != null) {
+                    cache = new SlotCache(cache.size(), capacity);
+                }
+            }
+            count = newCount;
+            last = newLast;
+            sequence = newSequence;
+            updateHeader();
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private void readRecLen() throws IOException {
-        raf.seek(0);
-        recLen = raf.readInt();
+    private void fireSlotsWritten(long slot, byte[] data) {
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).slotsWritten(slot, data);
+        }
+    }
+
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Captures the current records as a read-only view, see {@link RingBufferSnapshot}.
+     * Until the snapshot is closed, slots of the view are copied to memory before they
+     * are overwritten, so it must be closed, e.g. with try-with-resources.
+     */
+    public synchronized RingBufferSnapshot snapshot() {
+        RingBufferSnapshot snapshot = new RingBufferSnapshot(this, count, last, sequence, capacity);
+        snapshots.add(snapshot);
+        return snapshot;
+    }
+
+    synchronized void removeSnapshot(RingBufferSnapshot snapshot) {
+        snapshots.remove(snapshot);
+    }
+
+    private void preserve(long slot, long num) {
+        for (int i = 0; i < snapshots.size(); i++) {
+            snapshots.get(i).preserve(slot, num);
+        }
+    }
+
+    private void preserveAll() {
+        for (int i = 0; i < snapshots.size(); i++) {
+            snapshots.get(i).preserveAll();
+        }
+    }
+
+    int getFlags() {
+        return flags;
+    }
+
+    int getDataOffset() {
+        return dataOffset;
+    }
+
+    int getSlotLen() {
+        return slotLen;
+    }
+
+    /*
+     * A cache miss reads the slot together with up to readAhead - 1 slots in
+     * front of it, which serves a following backward scan from memory.
+     */
+    private byte[] readSlot(long slot) throws IOException {
+        if (cache == null) {
+            byte[] ba = new byte[slotLen];
+            readAt(dataOffset + (slot * slotLen), ba);
+            return ba;
+        }
+        byte[] cached = cache.get(slot);
+        if (cached == null) {
+            int num = (int) Math.min(readAhead, slot + 1);
+            long first = slot - num + 1;
+            byte[] ba = new byte[num * slotLen];
+            readAt(dataOffset + (first * slotLen), ba);
+            for (int i = 0; i < num; i++) {
+                if (cache.get(first + i) == null) {
+                    cache.put(first + i, copyOfRange(ba, i * slotLen, (i + 1) * slotLen));
+                }
+            }
+            cached = cache.get(slot);
+        }
+        return cached.clone();
+    }
+
+    /*
+     * Drops num slots counting backwards from slot, wrapping around.
+     */
+    private void invalidate(long slot, long num) {
+        if (cache == null) {
+            return;
+        }
+        if (num >= cache.size()) {
+            cache.clear();
+            return;
+        }
+        for (long i = 0; i < num; i++) {
+            cache.invalidate(slot);
+            slot = (slot == 0 ? capacity : slot) - 1;
+        }
+    }
+
+    private byte[] toRecord(byte[] slotData) {
+        return slotLen == recLen ? slotData : copyOf(slotData, recLen);
+    }
+
+    private boolean isExpired(byte[] slotData, int off, long now) {
+        if (slotLen == recLen) {
+            return false;
+        }
+        long expiry = 0;
+        for (int i = off + recLen; i < off + slotLen; i++) {
+            expiry = (expiry << 8) | (slotData[i] & 0xFF);
+        }
+        return expiry != 0 && expiry <= now;
+    }
+
+    private void updateHeader() {
+        try {
+            if (capacity != headerCapacity) {
+                writeStaticHeader();
+            }
+            ByteBuffer bb = ByteBuffer.wrap(headerBuf, 0, 24);
+            bb.putLong(count).putLong(last).putLong(sequence);
+            writeHeader(COUNT_POS, 24);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).headerUpdated(count, last, capacity);
+        }
+    }
+
+    private void writeStaticHeader() throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(headerBuf);
+        bb.putInt(MAGIC).putInt(dataOffset >= HEADER_LEN ? VERSION : 1).putInt(recLen).putInt(flags).putLong(capacity).putInt(dataOffset);
+        CRC32 crc = new CRC32();
+        crc.update(headerBuf, 0, STATIC_HEADER_LEN);
+        bb.putInt((int) crc.getValue());
+        writeHeader(0, STATIC_HEADER_LEN + 4);
+        if (headerCapacity < 0) {
+            // a new or migrated header, the lock word may still hold old record data
+            Arrays.fill(headerBuf, 0, 8, (byte) 0);
+            writeHeader(LOCK_POS, 8);
+            writeTtl();
+        }
+        headerCapacity = capacity;
+    }
+
+    private void writeTtl() throws IOException {
+        if (dataOffset >= HEADER_LEN) {
+            ByteBuffer.wrap(headerBuf).putLong(ttl);
+            writeHeader(TTL_POS, 8);
+        }
+    }
+
+    private void writeHeader(int pos, int len) throws IOException {
+        if (direct != null) {
+            direct.writeHeader(pos, headerBuf, len);
+        } else {
+            raf.seek(pos);
+            raf.write(headerBuf, 0, len);
+        }
+    }
+
+    private void writeAt(long pos, byte[] ba) throws IOException {
+        if (direct != null) {
+            direct.write(pos, ba, 0, ba.length);
+        } else {
+            raf.seek(pos);
+            raf.write(ba);
+        }
+    }
+
+    /*
+     * Staged records of a direct buffer are not on disk yet, they are taken
+     * from the staging buffer instead.
+     */
+    private void readAt(long pos, byte[] ba) throws IOException {
+        raf.seek(pos);
+        raf.read(ba);
+        if (direct != null) {
+            direct.overlay(pos, ba);
+        }
+    }
+
+    private void setLength(long length) throws IOException {
+        if (direct != null) {
+            direct.flush();
+            direct.setLength(length);
+        }
+        raf.setLength(length);
     }
 }
@@ -0,0 +1,37 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+/**
+ * Receives the raw changes a {@link RingBuffer} makes to its file.
+ * Callbacks run on the thread that modified the buffer.
+ */
+public interface RingBufferListener {
+
+    /**
+     * One or more consecutive slots starting at <code>slot</code> were written.
+     * <code>data</code> holds the raw slot bytes and must not be modified.
+     */
+    void slotsWritten(long slot, byte[] data);
+
+    /**
+     * The header fields were written.
+     */
+    void headerUpdated(long count, long last, long capacity);
+}
@@ -0,0 +1,194 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the records of a {@link RingBuffer} in batches, oldest first.
+ * <p>
+ * Each <code>onNext</code> delivers up to <code>batchSize</code> records which
+ * are taken out of the buffer, so only requested batches are ever read. While
+ * subscribers lag behind, the records stay in the ring file. Several
+ * subscribers share the records, each record is delivered to one of them.
+ * Delivery runs on the given executor, e.g. a virtual thread per task executor.
+ * <p>
+ * Delivery is at most once: a batch is taken out of the buffer before
+ * <code>onNext</code>, if <code>onNext</code> throws, its records are lost and
+ * the subscriber receives <code>onError</code>.
+ */
+public class RingBufferPublisher implements Flow.Publisher<byte[][]>, RingBufferListener {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final RingBuffer rb;
+    private final int batchSize;
+    private final Executor executor;
+    private final CopyOnWriteArrayList<RingSubscription> subscriptions = new CopyOnWriteArrayList<RingSubscription>();
+    private volatile boolean closed;
+
+    public RingBufferPublisher(RingBuffer rb) {
+        this(rb, DEFAULT_BATCH_SIZE, ForkJoinPool.commonPool());
+    }
+
+    public RingBufferPublisher(RingBuffer rb, int batchSize, Executor executor) {
+        this.rb = rb;
+        this.batchSize = batchSize;
+        this.executor = executor;
+        rb.addListener(this);
+    }
+
+    public void subscribe(Flow.Subscriber<? super byte[][]> subscriber) {
+        RingSubscription subscription = new RingSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+        // close() may have run meanwhile and missed this subscription
+        if (closed) {
+            subscriptions.remove(subscription);
+            subscription.complete();
+        }
+        subscription.start();
+    }
+
+    /**
+     * Completes all subscribers after serving their outstanding demand,
+     * the records not delivered stay in the buffer.
+     */
+    public void close() {
+        closed = true;
+        rb.removeListener(this);
+        for (RingSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+        subscriptions.clear();
+    }
+
+    public void slotsWritten(long slot, byte[] data) {
+    }
+
+    public void headerUpdated(long count, long last, long capacity) {
+        if (count > 0) {
+            for (RingSubscription subscription : subscriptions) {
+                subscription.signal();
+            }
+        }
+    }
+
+    private final class RingSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super byte[][]> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile boolean completed;
+        private volatile Throwable error;
+
+        RingSubscription(Flow.Subscriber<? super byte[][]> subscriber) {
+            this.subscriber = subscriber;
+            // held until onSubscribe returned, see start()
+            wip.set(1);
+        }
+
+        /*
+         * Releases the hold taken in the constructor and drains the signals
+         * which arrived meanwhile, e.g. a request made in onSubscribe.
+         */
+        void start() {
+            if (wip.decrementAndGet() != 0) {
+                executor.execute(this);
+            }
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                // delivered by the drain loop, signals must not overlap onNext
+                error = new IllegalArgumentException("Request must be positive: " + n);
+                subscriptions.remove(this);
+                signal();
+                return;
+            }
+            long r;
+            do {
+                r = requested.get();
+            } while (!requested.compareAndSet(r, r + n < 0 ? Long.MAX_VALUE : r + n));
+            signal();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void complete() {
+            completed = true;
+            signal();
+        }
+
+        void signal() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /*
+         * Only one thread drains at a time; signals arriving meanwhile are
+         * counted in wip and cause another round.
+         */
+        public void run() {
+            int missed = 1;
+            do {
+                if (cancelled) {
+                    return;
+                }
+                if (error != null) {
+                    cancelled = true;
+                    subscriber.onError(error);
+                    return;
+                }
+                while (!cancelled && error == null && requested.get() > 0) {
+                    byte[][] batch = rb.take(batchSize);
+                    if (batch.length == 0) {
+                        break;
+                    }
+                    if (requested.get() != Long.MAX_VALUE) {
+                        requested.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onNext(batch);
+                    } catch (RuntimeException e) {
+                        cancel();
+                        subscriber.onError(e);
+                        return;
+                    }
+                }
+                if (completed && error == null) {
+                    cancelled = true;
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static java.util.Arrays.copyOfRange;
+
+/**
+ * Read-only view of the records a {@link RingBuffer} held when
+ * {@link RingBuffer#snapshot()} was called.
+ * <p>
+ * The records stay in the ring file. Before a writer overwrites a slot of the
+ * view, the buffer hands the old content to the snapshot, so only overwritten
+ * slots are copied to memory. A capacity change copies all slots of the view.
+ * Reading takes the buffer lock for one chunk of records at a time, pushes go
+ * on in between. Records are returned oldest first, expired ones included.
+ * Call {@link #close()} when done, e.g. with try-with-resources, otherwise the
+ * buffer keeps copying slots.
+ */
+public class RingBufferSnapshot implements Iterable<byte[]>, AutoCloseable {
+
+    private static final int READ_CHUNK = 1024;
+
+    private final RingBuffer rb;
+    private final long count;
+    private final long last;
+    private final long sequence;
+    private final long capacity;
+    private final long first;
+    private final int recLen;
+    private final int slotLen;
+    private final HashMap<Long, byte[]> saved = new HashMap<Long, byte[]>();
+    private boolean closed;
+
+    /*
+     * Called by the buffer with its lock held.
+     */
+    RingBufferSnapshot(RingBuffer rb, long count, long last, long sequence, long capacity) {
+        this.rb = rb;
+        this.count = count;
+        this.last = last;
+        this.sequence = sequence;
+        this.capacity = capacity;
+        this.first = capacity > 0 ? (last - count + 1 + capacity) % capacity : 0;
+        this.recLen = (int) rb.getRecLen();
+        this.slotLen = rb.getSlotLen();
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getLast() {
+        return last;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of slots copied to memory because they were overwritten.
+     */
+    public long getCopiedCount() {
+        synchronized (rb) {
+            return saved.size();
+        }
+    }
+
+    public Iterator<byte[]> iterator() {
+        return new Iterator<byte[]>() {
+            private long index;
+            private byte[] chunk = new byte[0];
+            private int pos;
+
+            public boolean hasNext() {
+                return index < count;
+            }
+
+            public byte[] next() {
+                if (index >= count) {
+                    throw new NoSuchElementException();
+                }
+                if (pos == chunk.length) {
+                    chunk = readChunk(index, READ_CHUNK);
+                    pos = 0;
+                }
+                byte[] ba = copyOfRange(chunk, pos, pos + recLen);
+                pos += slotLen;
+                index++;
+                return ba;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("Snapshot is read-only");
+            }
+        };
+    }
+
+    /**
+     * Writes the records to a new ring file with the same capacity, record
+     * format and byte order. The records start at slot 0, count and sequence
+     * are taken over.
+     */
+    public RingBuffer exportTo(String dataFile) {
+        RingBuffer target;
+        int flags = rb.getFlags();
+        if ((flags & RingBuffer.FLAG_DIRECT) != 0) {
+            target = RingBuffer.createDirect(dataFile, capacity, recLen);
+        } else if ((flags & RingBuffer.FLAG_TTL) != 0) {
+            target = new RingBuffer(dataFile, capacity, recLen, rb.getTtl());
+        } else {
+            target = new RingBuffer(dataFile, capacity, recLen);
+        }
+        target.setByteOrder(rb.getByteOrder());
+        long index = 0;
+        while (index < count) {
+            byte[] ba = readChunk(index, READ_CHUNK);
+            target.applySlots(index, ba);
+            index += ba.length / slotLen;
+        }
+        target.applyHeader(count, count > 0 ? count - 1 : 0, capacity, sequence);
+        return target;
+    }
+
+    /**
+     * Releases the copied slots, the view cannot be read afterwards.
+     */
+    public void close() {
+        synchronized (rb) {
+            closed = true;
+            saved.clear();
+            rb.removeSnapshot(this);
+        }
+    }
+
+    /*
+     * Called by the buffer before slots are written, with its lock held.
+     */
+    void preserve(long slot, long num) {
+        long from = -1;
+        long to = -1;
+        for (long i = 0; i < num; i++) {
+            if (contains(slot + i) && !saved.containsKey(slot + i)) {
+                from = from < 0 ? i : from;
+                to = i + 1;
+            }
+        }
+        if (from < 0) {
+            return;
+        }
+        byte[] ba = rb.readSlots(slot + from, (int) (to - from));
+        for (long i = from; i < to; i++) {
+            Long key = slot + i;
+            if (contains(key) && !saved.containsKey(key)) {
+                int off = (int) (i - from) * slotLen;
+                saved.put(key, copyOfRange(ba, off, off + slotLen));
+            }
+        }
+    }
+
+    /*
+     * Called by the buffer before its layout changes, with its lock held.
+     */
+    void preserveAll() {
+        long index = 0;
+        while (index < count) {
+            long slot = slotOf(index);
+            int num = (int) Math.min(READ_CHUNK, contiguousSlots(index));
+            preserve(slot, num);
+            index += num;
+        }
+    }
+
+    /*
+     * Raw slot bytes of up to max records starting with the index-th oldest,
+     * stopping at the end of the file.
+     */
+    private byte[] readChunk(long index, int max) {
+        synchronized (rb) {
+            if (closed) {
+                throw new RuntimeException("Snapshot is closed");
+            }
+            long slot = slotOf(index);
+            int num = (int) Math.min(max, contiguousSlots(index));
+            byte[] ba = saved.size() == count ? new byte[num * slotLen] : rb.readSlots(slot, num);
+            for (int i = 0; i < num; i++) {
+                byte[] old = saved.get(slot + i);
+                if (old != null) {
+                    System.arraycopy(old, 0, ba, i * slotLen, slotLen);
+                }
+            }
+            return ba;
+        }
+    }
+
+    private long slotOf(long index) {
+        return (first + index) % capacity;
+    }
+
+    private long contiguousSlots(long index) {
+        return Math.min(capacity - slotOf(index), count - index);
+    }
+
+    /*
+     * Slot numbers beyond the captured capacity only occur after the buffer
+     * grew, when all slots of the view are copied already.
+     */
+    private boolean contains(long slot) {
+        return slot < capacity && (slot - first + capacity) % capacity < count;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pushes the received records into a {@link RingBuffer}.
+ * <p>
+ * Records are requested <code>batchSize</code> at a time and written with
+ * {@link RingBuffer#pushAll(byte[][])} once the batch is complete, so the
+ * header is updated once per batch. A partial batch is written on completion
+ * or error. A record of the wrong length or a failing write cancels the
+ * subscription, the error is kept for {@link #getError()}.
+ */
+public class RingBufferSubscriber implements Flow.Subscriber<byte[]> {
+
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final RingBuffer rb;
+    private final int batchSize;
+    private final byte[][] batch;
+    private final CountDownLatch terminated = new CountDownLatch(1);
+    private Flow.Subscription subscription;
+    private int size;
+    private boolean done;
+    private volatile Throwable error;
+
+    public RingBufferSubscriber(RingBuffer rb) {
+        this(rb, DEFAULT_BATCH_SIZE);
+    }
+
+    public RingBufferSubscriber(RingBuffer rb, int batchSize) {
+        this.rb = rb;
+        this.batchSize = batchSize;
+        this.batch = new byte[batchSize][];
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(batchSize);
+    }
+
+    public void onNext(byte[] item) {
+        if (done) {
+            return;
+        }
+        if (item.length != rb.getRecLen()) {
+            subscription.cancel();
+            terminate(new RuntimeException("Date length error, length must be " + rb.getRecLen()));
+            return;
+        }
+        batch[size++] = item;
+        if (size == batchSize) {
+            if (flush()) {
+                subscription.request(batchSize);
+            } else {
+                subscription.cancel();
+            }
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        if (!done) {
+            terminate(throwable);
+        }
+    }
+
+    public void onComplete() {
+        if (!done) {
+            terminate(null);
+        }
+    }
+
+    /**
+     * Waits until the publisher completed or failed.
+     *
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    private void terminate(Throwable throwable) {
+        error = throwable;
+        flush();
+        done = true;
+        terminated.countDown();
+    }
+
+    /*
+     * Writes the collected records, a failure terminates the subscriber.
+     */
+    private boolean flush() {
+        if (size == 0) {
+            return true;
+        }
+        byte[][] records = new byte[size][];
+        System.arraycopy(batch, 0, records, 0, size);
+        for (int i = 0; i < size; i++) {
+            batch[i] = null;
+        }
+        size = 0;
+        try {
+            rb.pushAll(records);
+            return true;
+        } catch (RuntimeException e) {
+            if (error == null) {
+                error = e;
+            }
+            done = true;
+            terminated.countDown();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Optional;
+
+/**
+ * A ring buffer file shared by several processes on the same host.
+ * <p>
+ * The whole file is mapped and <code>count</code>, <code>last</code> and
+ * <code>sequence</code> are read and written directly in the mapped header,
+ * so every process always sees the current state. Each operation holds the
+ * lock word of the header, taken with a compare-and-set on the mapping.
+ * The file layout is the one of {@link RingBuffer}; the capacity is fixed
+ * while the buffer is shared. The lock word holds the process id of the
+ * holder. A waiting process takes the lock over once the holder no longer
+ * runs; the operation the holder was in may then be half done. Process ids
+ * are only comparable within one PID namespace, all processes sharing a file
+ * must run in the same one, e.g. not in separate containers. Otherwise a
+ * process may take over the lock of a holder which still runs.
+ */
+public class SharedRingBuffer {
+
+    private static final VarHandle LONG_HANDLE =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final long PID = ProcessHandle.current().pid();
+    private static final int STALE_CHECK_SPINS = 1 << 14;
+
+    public final String dataFile;
+    private final long capacity;
+    private final int recLen;
+    private final int dataOffset;
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+
+    /**
+     * Attaches to <code>dataFile</code>, creating it if it does not exist yet.
+     * The file is created under a file lock, so of several processes starting
+     * together only the first one initialises it.
+     */
+    public SharedRingBuffer(String dataFile, long initCapacity, int newRecLen) {
+        this.dataFile = dataFile;
+        RingBuffer rb = attachOrCreate(dataFile, initCapacity, newRecLen);
+        capacity = rb.getCapacity();
+        recLen = (int) rb.getRecLen();
+        dataOffset = rb.getDataOffset();
+        boolean ttl = rb.getSlotLen() != recLen;
+        rb.close();
+        if (ttl) {
+            throw new RuntimeException("Shared storage with record TTL not supported");
+        }
+        if (capacity != initCapacity || recLen != newRecLen) {
+            throw new RuntimeException("Shared storage has capacity " + capacity + " and record length " + recLen);
+        }
+        map();
+    }
+
+    /**
+     * Attaches to an existing <code>dataFile</code>.
+     */
+    public SharedRingBuffer(String dataFile) {
+        this.dataFile = dataFile;
+        RingBuffer rb = RingBuffer.open(dataFile);
+        capacity = rb.getCapacity();
+        recLen = (int) rb.getRecLen();
+        dataOffset = rb.getDataOffset();
+        boolean ttl = rb.getSlotLen() != recLen;
+        rb.close();
+        if (ttl) {
+            throw new RuntimeException("Shared storage with record TTL not supported");
+        }
+        map();
+    }
+
+    /*
+     * An empty file is one that was just created, here or by a process which
+     * still waits for the lock.
+     */
+    private static RingBuffer attachOrCreate(String dataFile, long initCapacity, int newRecLen) {
+        synchronized (SharedRingBuffer.class) {
+            RandomAccessFile init = null;
+            try {
+                init = new RandomAccessFile(dataFile, "rw");
+                FileLock lock = init.getChannel().lock();
+                try {
+                    if (init.length() == 0) {
+                        return new RingBuffer(dataFile, initCapacity, newRecLen);
+                    }
+                    return RingBuffer.open(dataFile);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Storage file not lockable: " + dataFile, e);
+            } finally {
+                if (init != null) {
+                    try {
+                        init.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+    private void map() {
+        long size = dataOffset + (capacity * recLen);
+        if (size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Storage too large to be shared: " + size + " bytes");
+        }
+        try {
+            raf = new RandomAccessFile(dataFile, "rw");
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } catch (IOException e) {
+            close();
+            throw new RuntimeException("Storage file not mappable: " + dataFile, e);
+        }
+    }
+
+    public void close() {
+        map = null;
+        if (raf == null) {
+            return;
+        }
+        try {
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void push(byte[] data) {
+        if (data.length != recLen) {
+            throw new RuntimeException("Date length error, length must be " + recLen);
+        }
+        if (this.capacity == 0) {
+            throw new RuntimeException("Storage capacity is 0");
+        }
+        lock();
+        try {
+            long count = getLong(RingBuffer.COUNT_POS);
+            long last = getLong(RingBuffer.LAST_POS);
+            last = (last + 1) % capacity;
+            map.position((int) (dataOffset + (last * recLen)));
+            map.put(data);
+            setLong(RingBuffer.COUNT_POS, Math.min(count + 1, capacity));
+            setLong(RingBuffer.LAST_POS, last);
+            setLong(RingBuffer.SEQUENCE_POS, getLong(RingBuffer.SEQUENCE_POS) + 1);
+        } finally {
+            unlock();
+        }
+    }
+
+    public byte[] pop() {
+        lock();
+        try {
+            long count = getLong(RingBuffer.COUNT_POS);
+            if (count == 0) {
+                return null;
+            }
+            long last = getLong(RingBuffer.LAST_POS);
+            byte[] ba = read(last);
+            setLong(RingBuffer.COUNT_POS, count - 1);
+            setLong(RingBuffer.LAST_POS, (last == 0 ? capacity : last) - 1);
+            return ba;
+        } finally {
+            unlock();
+        }
+    }
+
+    public byte[] peek() {
+        lock();
+        try {
+            if (getLong(RingBuffer.COUNT_POS) == 0) {
+                return null;
+            }
+            return read(getLong(RingBuffer.LAST_POS));
+        } finally {
+            unlock();
+        }
+    }
+
+    public byte[][] peek(int num) {
+        ArrayList<byte[]> list = new ArrayList<byte[]>(num);
+        lock();
+        try {
+            long tlast = getLong(RingBuffer.LAST_POS);
+            long mnum = Math.min(getLong(RingBuffer.COUNT_POS), num);
+            for (int i = 0; i < mnum; i++) {
+                list.add(read(tlast));
+                tlast = (tlast == 0 ? capacity : tlast) - 1;
+            }
+        } finally {
+            unlock();
+        }
+        byte[][] ret = new byte[list.size()][recLen];
+        return list.toArray(ret);
+    }
+
+    public void delete() {
+        delete(1);
+    }
+
+    public void delete(int num) {
+        lock();
+        try {
+            long count = getLong(RingBuffer.COUNT_POS);
+            if (count > 0) {
+                long last = getLong(RingBuffer.LAST_POS);
+                long mnum = Math.min(count, num);
+                setLong(RingBuffer.COUNT_POS, count - mnum);
+                setLong(RingBuffer.LAST_POS, last >= mnum ? last - mnum : capacity - (mnum - last));
+            }
+        } finally {
+            unlock();
+        }
+    }
+
+    public long getCount() {
+        return getLong(RingBuffer.COUNT_POS);
+    }
+
+    public long getLast() {
+        return getLong(RingBuffer.LAST_POS);
+    }
+
+    public long getSequence() {
+        return getLong(RingBuffer.SEQUENCE_POS);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getRecLen() {
+        return recLen;
+    }
+
+    private byte[] read(long slot) {
+        byte[] ba = new byte[recLen];
+        map.position((int) (dataOffset + (slot * recLen)));
+        map.get(ba);
+        return ba;
+    }
+
+    private long getLong(int pos) {
+        return (long) LONG_HANDLE.getAcquire(map, pos);
+    }
+
+    private void setLong(int pos, long value) {
+        LONG_HANDLE.setRelease(map, pos, value);
+    }
+
+    private void lock() {
+        int spins = 0;
+        while (true) {
+            long holder = getLong(RingBuffer.LOCK_POS);
+            if (holder == 0) {
+                if (LONG_HANDLE.compareAndSet(map, RingBuffer.LOCK_POS, 0L, PID)) {
+                    return;
+                }
+            } else if ((spins++ % STALE_CHECK_SPINS) == 0 && holder != PID && !isAlive(holder)) {
+                if (LONG_HANDLE.compareAndSet(map, RingBuffer.LOCK_POS, holder, PID)) {
+                    return;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /*
+     * Only meaningful if the holder runs in the PID namespace of this process.
+     */
+    private static boolean isAlive(long pid) {
+        if (pid <= 0) {
+            return false;
+        }
+        Optional<ProcessHandle> process = ProcessHandle.of(pid);
+        return process.isPresent() && process.get().isAlive();
+    }
+
+    private void unlock() {
+        LONG_HANDLE.setRelease(map, RingBuffer.LOCK_POS, 0L);
+    }
+}
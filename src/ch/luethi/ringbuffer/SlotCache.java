@@ -0,0 +1,85 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+import java.util.Arrays;
+
+/**
+ * Direct mapped cache of slot contents for a ring of <code>capacity</code>
+ * slots. Slot <code>n</code> lives in entry <code>n % size</code>, except for
+ * the slots behind the last full block of <code>size</code> slots, which get
+ * entries of their own. So the newest <code>size</code> slots never evict each
+ * other, also when they wrap around the end of the ring.
+ */
+class SlotCache {
+
+    private final int size;
+    private final int blockSize;
+    private final long blockEnd;
+    private final long[] tags;
+    private final byte[][] entries;
+
+    SlotCache(int size, long capacity) {
+        this.size = size;
+        blockSize = (int) Math.max(1, Math.min(size, capacity));
+        blockEnd = capacity - (capacity % blockSize);
+        int len = blockSize + (int) (capacity - blockEnd);
+        tags = new long[len];
+        entries = new byte[len][];
+        clear();
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the cached content of <code>slot</code>, the array must not be modified.
+     */
+    byte[] get(long slot) {
+        int i = index(slot);
+        return tags[i] == slot ? entries[i] : null;
+    }
+
+    /**
+     * Caches <code>data</code> for <code>slot</code>, the array is kept as is.
+     */
+    void put(long slot, byte[] data) {
+        int i = index(slot);
+        tags[i] = slot;
+        entries[i] = data;
+    }
+
+    void invalidate(long slot) {
+        int i = index(slot);
+        if (tags[i] == slot) {
+            tags[i] = -1;
+            entries[i] = null;
+        }
+    }
+
+    void clear() {
+        Arrays.fill(tags, -1);
+        Arrays.fill(entries, null);
+    }
+
+    private int index(long slot) {
+        return (int) (slot < blockEnd ? slot % blockSize : blockSize + (slot - blockEnd));
+    }
+}
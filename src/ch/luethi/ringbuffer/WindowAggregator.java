@@ -0,0 +1,169 @@
+/*
+ * RingBuffer is a fixed-length-element and contiguous-block circular persistent buffer.
+ *
+ * Copyright (C) 2016  Andreas Lüthi
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package ch.luethi.ringbuffer;
+
+/**
+ * Keeps count, sum, minimum and maximum over the newest records of a
+ * {@link RingBuffer} up to date, so {@link #window(int)} needs no I/O.
+ * <p>
+ * The value of every slot is held in a segment tree indexed by slot, which
+ * is updated from the written slots reported by the buffer. pop and delete
+ * only move <code>last</code> and <code>count</code>, which the queries read
+ * from the buffer, so they cost nothing here. A window query combines at most
+ * two slot ranges in O(log capacity). After a capacity change the tree is
+ * rebuilt from the file on the next query. The tree takes 48 bytes per slot.
+ * Expired records count until they are reclaimed.
+ */
+public class WindowAggregator implements RingBufferListener {
+
+    private static final int LOAD_CHUNK = 4096;
+
+    private final RingBuffer rb;
+    private final FieldExtractor field;
+    private long capacity;
+    private int size;
+    private double[] sum;
+    private double[] min;
+    private double[] max;
+    private boolean stale;
+
+    /**
+     * A {@link NumericField} without an explicit byte order reads the values in
+     * the byte order of <code>rb</code>.
+     */
+    public WindowAggregator(RingBuffer rb, FieldExtractor field) {
+        this.rb = rb;
+        this.field = field instanceof NumericField ? ((NumericField) field).orderOf(rb) : field;
+        synchronized (rb) {
+            load();
+            rb.addListener(this);
+        }
+    }
+
+    public void close() {
+        rb.removeListener(this);
+    }
+
+    /**
+     * Returns the statistics of the newest <code>num</code> records.
+     */
+    public WindowStats window(int num) {
+        synchronized (rb) {
+            if (stale) {
+                load();
+            }
+            long m = Math.min(num, rb.getCount());
+            if (m <= 0) {
+                return new WindowStats(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+            }
+            long last = rb.getLast();
+            double[] acc = {0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+            if (last + 1 >= m) {
+                query((int) (last + 1 - m), (int) (last + 1), acc);
+            } else {
+                query(0, (int) (last + 1), acc);
+                query((int) (capacity - (m - last - 1)), (int) capacity, acc);
+            }
+            return new WindowStats(m, acc[0], acc[1], acc[2]);
+        }
+    }
+
+    public void slotsWritten(long slot, byte[] data) {
+        if (stale) {
+            return;
+        }
+        int slotLen = rb.getSlotLen();
+        int num = data.length / slotLen;
+        if (slot + num > size) {
+            stale = true;
+            return;
+        }
+        for (int i = 0; i < num; i++) {
+            update((int) slot + i, field.extract(data, i * slotLen));
+        }
+    }
+
+    public void headerUpdated(long count, long last, long capacity) {
+        if (capacity != this.capacity) {
+            stale = true;
+        }
+    }
+
+    private void load() {
+        capacity = rb.getCapacity();
+        if (capacity >= Integer.MAX_VALUE / 2) {
+            throw new RuntimeException("Storage capacity too large to be aggregated: " + capacity);
+        }
+        size = (int) capacity;
+        sum = new double[2 * size];
+        min = new double[2 * size];
+        max = new double[2 * size];
+        int slotLen = rb.getSlotLen();
+        for (int slot = 0; slot < size; slot += LOAD_CHUNK) {
+            int num = Math.min(LOAD_CHUNK, size - slot);
+            byte[] data = rb.readSlots(slot, num);
+            for (int i = 0; i < num; i++) {
+                double v = field.extract(data, i * slotLen);
+                sum[size + slot + i] = v;
+                min[size + slot + i] = v;
+                max[size + slot + i] = v;
+            }
+        }
+        for (int p = size - 1; p > 0; p--) {
+            pull(p);
+        }
+        stale = false;
+    }
+
+    private void update(int slot, double v) {
+        int p = slot + size;
+        sum[p] = v;
+        min[p] = v;
+        max[p] = v;
+        for (p >>= 1; p > 0; p >>= 1) {
+            pull(p);
+        }
+    }
+
+    private void pull(int p) {
+        sum[p] = sum[2 * p] + sum[2 * p + 1];
+        min[p] = Math.min(min[2 * p], min[2 * p + 1]);
+        max[p] = Math.max(max[2 * p], max[2 * p + 1]);
+    }
+
+    /*
+     * Bottom up query over the slots [from, to), adds to acc = {sum, min, max}.
+     */
+    private void query(int from, int to, double[] acc) {
+        for (int l = from + size, r = to + size; l < r; l >>= 1, r >>= 1) {
+            if ((l & 1) == 1) {
+                add(l++, acc);
+            }
+            if ((r & 1) == 1) {
+                add(--r, acc);
+            }
+        }
+    }
+
+    private void add(int p, double[] acc) {
+        acc[0] += sum[p];
+        acc[1] = Math.min(acc[1], min[p]);
+        acc[2] = Math.max(acc[2], max[p]);
+    }
+}